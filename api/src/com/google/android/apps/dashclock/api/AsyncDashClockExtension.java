@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link DashClockExtension} whose updates can complete after
+ * {@link #onUpdateData(UpdateRequest)} returns. This is useful for extensions that wait on the
+ * network or on a location fix.
+ *
+ * <p>
+ * Each update comes with an {@link UpdateRequest} handle. Call
+ * {@link UpdateRequest#finish(ExtensionData)} when the data is ready, or
+ * {@link UpdateRequest#finish()} if there's nothing new to show. Long-running work can be handed to
+ * {@link #getUpdateExecutor()} so that the extension's update thread stays free.
+ *
+ * <p>
+ * DashClock keeps track of update requests it has made. It may cancel a request when a newer
+ * one supersedes it, or when the request takes too long. Extensions can check
+ * {@link UpdateRequest#isCancelled()} to stop unnecessary work early.
+ */
+public abstract class AsyncDashClockExtension extends DashClockExtension {
+    private static final int[] NO_REQUEST_IDS = new int[0];
+
+    private final List<UpdateRequest> mActiveRequests = new ArrayList<UpdateRequest>();
+
+    private ExecutorService mUpdateExecutor;
+
+    @Override
+    protected final void onUpdateData(int reason) {
+        dispatchUpdate(reason, NO_REQUEST_IDS);
+    }
+
+    @Override
+    void dispatchUpdate(int reason, int[] requestIds) {
+        UpdateRequest request = new UpdateRequest(reason, requestIds);
+        synchronized (mActiveRequests) {
+            mActiveRequests.add(request);
+        }
+
+        onUpdateData(request);
+    }
+
+    @Override
+    void onUpdateRequestCancelled(int requestId) {
+        synchronized (mActiveRequests) {
+            for (UpdateRequest request : mActiveRequests) {
+                request.cancelRequestId(requestId);
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (this) {
+            if (mUpdateExecutor != null) {
+                mUpdateExecutor.shutdownNow();
+                mUpdateExecutor = null;
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Called when the DashClock app process is requesting that the extension provide updated
+     * information to show to the user. This is called on the extension's update thread, and
+     * should return quickly. The given request must eventually be finished, either from here or
+     * later on from any thread.
+     *
+     * @param request The update request. See {@link UpdateRequest#getReason()} for the reason for
+     *                the update.
+     */
+    protected abstract void onUpdateData(UpdateRequest request);
+
+    /**
+     * Returns the executor that long-running update work can be run on. By default this is a
+     * single background thread, created when first needed and shut down when the extension is
+     * destroyed. Subclasses can override this to provide their own executor.
+     */
+    protected Executor getUpdateExecutor() {
+        synchronized (this) {
+            if (mUpdateExecutor == null) {
+                mUpdateExecutor = Executors.newSingleThreadExecutor();
+            }
+            return mUpdateExecutor;
+        }
+    }
+
+    /**
+     * A handle to an in-progress update. Finishing it publishes data (if any) and tells DashClock
+     * that the update is done.
+     */
+    public final class UpdateRequest {
+        private final int mReason;
+        private final int[] mRequestIds;
+        private int mCancelledRequestIdCount = 0;
+        private volatile boolean mCancelled = false;
+        private boolean mFinished = false;
+
+        private UpdateRequest(int reason, int[] requestIds) {
+            mReason = reason;
+            mRequestIds = requestIds;
+        }
+
+        /**
+         * Returns the reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
+         * constants for more details.
+         */
+        public int getReason() {
+            return mReason;
+        }
+
+        /**
+         * Returns whether or not DashClock has stopped waiting for this update, for example
+         * because a newer update request superseded it. Data published afterwards is still
+         * shown.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Returns whether or not this request has already been finished.
+         */
+        public synchronized boolean isFinished() {
+            return mFinished;
+        }
+
+        /**
+         * Publishes the given data (see {@link #publishUpdate(ExtensionData)}) and finishes this
+         * request. Calls after the first one are ignored.
+         *
+         * @param data The data to show, or <code>null</code> if existing data should be cleared
+         *             (hiding the extension from view).
+         */
+        public void finish(ExtensionData data) {
+            if (!markFinished()) {
+                return;
+            }
+
+            publishUpdate(data);
+            complete();
+        }
+
+        /**
+         * Finishes this request without publishing anything, leaving existing data as-is. Calls
+         * after the first one are ignored.
+         */
+        public void finish() {
+            if (!markFinished()) {
+                return;
+            }
+
+            complete();
+        }
+
+        private synchronized boolean markFinished() {
+            if (mFinished) {
+                return false;
+            }
+
+            mFinished = true;
+            return true;
+        }
+
+        private void complete() {
+            synchronized (mActiveRequests) {
+                mActiveRequests.remove(this);
+            }
+            completeUpdateRequests(mRequestIds);
+        }
+
+        private void cancelRequestId(int requestId) {
+            for (int id : mRequestIds) {
+                if (id == requestId) {
+                    // Only cancelled once all the host requests it covers are.
+                    if (++mCancelledRequestIdCount >= mRequestIds.length) {
+                        mCancelled = true;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * An {@link AsyncDashClockExtension} that remembers the last data it published and reuses it while it's
+ * still fresh. Useful for extensions whose updates are expensive, such as those that need network
+ * access.
+ *
+ * <p>
+ * Subclasses implement {@link #onRefreshData(UpdateRequest)} instead of
+ * {@link #onUpdateData(UpdateRequest)}, and finish the request (or call
+ * {@link #publishUpdate(ExtensionData)}) as usual. Published data is cached,
+ * along with the time it was published, and persisted so that it survives process restarts.
+ *
+ * <p>
+ * When an update is requested, the cached data is used as follows:
+ *
+ * <ul>
+ * <li>If it's younger than {@link #getCacheTtlMillis(int)} for the update reason, it's published
+ * as-is, the request is finished and {@link #onRefreshData(UpdateRequest)} isn't called.</li>
+ * <li>Otherwise, if it's younger than {@link #getMaxStaleMillis()}, it's published right away
+ * and {@link #onRefreshData(UpdateRequest)} is then called to replace it
+ * (stale-while-revalidate).</li>
+ * <li>Otherwise, only {@link #onRefreshData(UpdateRequest)} is called.</li>
+ * </ul>
+ *
+ * Cached data that has expired (see {@link ExtensionData#expiresAt(long)}) is never reused.
+ * Since {@link DashClockExtension} doesn't send data identical to what was last published,
+ * publishing cached data is cheap.
+ */
+public abstract class CachingDashClockExtension extends AsyncDashClockExtension {
+    private static final String TAG = "CachingDashClockExtension";
+
+    private static final String PREF_CACHED_DATA = "cached_data";
+    private static final String PREF_CACHED_TIME = "cached_time";
+
+    private static final long DEFAULT_MAX_STALE_MILLIS = 24 * 60 * 60 * 1000; // 1 day
+
+    private final Object mCacheLock = new Object();
+    private boolean mCacheLoaded = false;
+    private ExtensionData mCachedData;
+    private long mCachedTime;
+
+    @Override
+    protected final void onUpdateData(UpdateRequest request) {
+        ExtensionData cachedData;
+        long age;
+        synchronized (mCacheLock) {
+            loadCache();
+            cachedData = mCachedData;
+            age = System.currentTimeMillis() - mCachedTime;
+        }
+
+        if (cachedData != null && age >= 0
+                && !cachedData.isExpired(System.currentTimeMillis())) {
+            if (age < getCacheTtlMillis(request.getReason())) {
+                request.finish(cachedData);
+                return;
+            }
+
+            if (age < getMaxStaleMillis()) {
+                // Show what we have while fresh data is fetched.
+                publishUpdate(cachedData);
+            }
+        }
+
+        onRefreshData(request);
+    }
+
+    /**
+     * Called when cached data isn't fresh enough for the request's update reason.
+     * Implementations should compute fresh data and finish the request with it, either
+     * synchronously or later on.
+     *
+     * @param request The update request. See {@link UpdateRequest#getReason()} for the reason
+     *                for the update.
+     */
+    protected abstract void onRefreshData(UpdateRequest request);
+
+    /**
+     * Returns how long published data can be reused without calling
+     * {@link #onRefreshData(UpdateRequest)}, for the given update reason. The default is 0, meaning data is
+     * always refreshed (though stale data is still shown in the meantime).
+     *
+     * @param reason The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
+     *               constants for more details.
+     */
+    protected long getCacheTtlMillis(int reason) {
+        return 0;
+    }
+
+    /**
+     * Returns how old cached data can be and still be shown while fresh data is being fetched.
+     * The default is one day.
+     */
+    protected long getMaxStaleMillis() {
+        return DEFAULT_MAX_STALE_MILLIS;
+    }
+
+    /**
+     * Returns the time at which the cached data was published, in milliseconds since the epoch,
+     * or 0 if there is no cached data.
+     */
+    protected final long getCachedDataTime() {
+        synchronized (mCacheLock) {
+            loadCache();
+            return (mCachedData != null) ? mCachedTime : 0;
+        }
+    }
+
+    @Override
+    void onDataPublished(ExtensionData data) {
+        synchronized (mCacheLock) {
+            if (data != null && data == mCachedData) {
+                // Republishing cached data doesn't make it any fresher.
+                return;
+            }
+
+            mCacheLoaded = true;
+            mCachedData = (data == null) ? null : data.copy();
+            mCachedTime = System.currentTimeMillis();
+
+            SharedPreferences.Editor editor = getCachePreferences().edit();
+            if (mCachedData == null) {
+                editor.remove(PREF_CACHED_DATA).remove(PREF_CACHED_TIME);
+            } else {
+                try {
+                    editor.putString(PREF_CACHED_DATA, mCachedData.serialize().toString())
+                            .putLong(PREF_CACHED_TIME, mCachedTime);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Couldn't persist cached extension data.", e);
+                    editor.remove(PREF_CACHED_DATA).remove(PREF_CACHED_TIME);
+                }
+            }
+            editor.apply();
+        }
+    }
+
+    private void loadCache() {
+        if (mCacheLoaded) {
+            return;
+        }
+
+        mCacheLoaded = true;
+        SharedPreferences sp = getCachePreferences();
+        String val = sp.getString(PREF_CACHED_DATA, null);
+        if (TextUtils.isEmpty(val)) {
+            return;
+        }
+
+        try {
+            ExtensionData data = new ExtensionData();
+            data.deserialize((JSONObject) new JSONTokener(val).nextValue());
+            mCachedData = data;
+            mCachedTime = sp.getLong(PREF_CACHED_TIME, 0);
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't load cached extension data.", e);
+        } catch (ClassCastException e) {
+            Log.e(TAG, "Couldn't load cached extension data.", e);
+        }
+    }
+
+    private SharedPreferences getCachePreferences() {
+        return getSharedPreferences("dashclock_extension_cache_" + getClass().getName(), 0);
+    }
+}
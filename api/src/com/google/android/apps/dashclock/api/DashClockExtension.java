@@ -29,6 +29,9 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Base class for a DashClock extension. Extensions are a way for other apps to show additional
  * status information within DashClock widgets that the user may add to the lockscreen or home
@@ -45,6 +48,10 @@ import android.util.Log;
  * {@link #addWatchContentUris(String[])} to request more frequent updates.
  *
  * <p>
+ * Extensions that can't produce data before {@link #onUpdateData(int)} returns, for example
+ * because they wait on the network, should extend {@link AsyncDashClockExtension} instead.
+ *
+ * <p>
  * Subclasses can also override the {@link #onInitialize(boolean)} method to perform basic
  * initialization each time a connection to DashClock is established or re-established.
  *
@@ -174,12 +181,59 @@ public abstract class DashClockExtension extends Service {
     public static final String PERMISSION_READ_EXTENSION_DATA
             = "com.google.android.apps.dashclock.permission.READ_EXTENSION_DATA";
 
+    /**
+     * The highest extension protocol version this class implements. Reported to hosts that
+     * speak protocol version 2 or later.
+     */
+    private static final int PROTOCOL_VERSION = 2;
+
     private boolean mInitialized = false;
     private IExtensionHost mHost;
 
+    /**
+     * The extension protocol version of the connected host. Hosts that don't report their
+     * version are assumed to only understand protocol version 1.
+     */
+    private volatile int mHostProtocolVersion = 1;
+
+    /**
+     * Guards {@link #mLastPublishedData}, {@link #mHasPublished} and
+     * {@link #mSuppressedPublishCount}, since {@link #publishUpdate(ExtensionData)} can be called
+     * from any thread.
+     */
+    private final Object mPublishLock = new Object();
+    private ExtensionData mLastPublishedData;
+    private boolean mHasPublished = false;
+    private int mSuppressedPublishCount = 0;
+
     private volatile Looper mServiceLooper;
     private volatile Handler mServiceHandler;
 
+    /**
+     * Guards the pending update state below. Update requests that arrive while an update is
+     * already pending are merged into it, so a burst of requests results in at most one
+     * follow-up call to {@link #onUpdateData(int)}.
+     */
+    private final Object mUpdateLock = new Object();
+    private boolean mUpdatePending = false;
+    private int mPendingUpdateReason;
+    private int mPendingUpdateRequestCount;
+    private final List<Integer> mPendingRequestIds = new ArrayList<Integer>();
+    private volatile int mCoalescedUpdateCount = 1;
+
+    /**
+     * Update reasons from least to most significant, used to pick the reason for a run that
+     * covers several merged update requests.
+     */
+    private static final int[] UPDATE_REASON_SIGNIFICANCE = {
+            UPDATE_REASON_UNKNOWN,
+            UPDATE_REASON_PERIODIC,
+            UPDATE_REASON_SCREEN_ON,
+            UPDATE_REASON_CONTENT_CHANGED,
+            UPDATE_REASON_SETTINGS_CHANGED,
+            UPDATE_REASON_INITIAL,
+    };
+
     protected DashClockExtension() {
         super();
     }
@@ -218,6 +272,10 @@ public abstract class DashClockExtension extends Service {
 
             mHost = host;
 
+            // A new host connection doesn't know about anything published before, so make sure
+            // the next update reaches it.
+            requestRepublish();
+
             if (!mInitialized) {
                 DashClockExtension.this.onInitialize(isReconnect);
                 mInitialized = true;
@@ -236,16 +294,175 @@ public abstract class DashClockExtension extends Service {
                 return;
             }
 
-            // Do this in a separate thread
-            mServiceHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    DashClockExtension.this.onUpdateData(reason);
+            scheduleUpdate(reason, 0);
+        }
+
+        @Override
+        public void setHostProtocolVersion(int protocolVersion) throws RemoteException {
+            if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
+                    != PackageManager.PERMISSION_GRANTED) {
+                throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
+                        + "permission.");
+            }
+
+            mHostProtocolVersion = protocolVersion;
+
+            if (protocolVersion >= 2 && mHost != null) {
+                // Let the host know it can use tracked update requests.
+                mHost.setExtensionProtocolVersion(PROTOCOL_VERSION);
+            }
+        }
+
+        @Override
+        public void onUpdateRequest(int reason, int requestId) throws RemoteException {
+            if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
+                    != PackageManager.PERMISSION_GRANTED) {
+                throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
+                        + "permission.");
+            }
+
+            if (!mInitialized) {
+                // Nothing to do; tell the host not to wait for this request.
+                completeUpdateRequests(new int[]{requestId});
+                return;
+            }
+
+            scheduleUpdate(reason, requestId);
+        }
+
+        @Override
+        public void cancelUpdateRequest(int requestId) throws RemoteException {
+            if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
+                    != PackageManager.PERMISSION_GRANTED) {
+                throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
+                        + "permission.");
+            }
+
+            synchronized (mUpdateLock) {
+                if (mPendingRequestIds.remove(Integer.valueOf(requestId))) {
+                    // Not started yet. The pending update still runs, but the host no longer
+                    // waits for it to complete this request.
+                    return;
                 }
-            });
+            }
+
+            onUpdateRequestCancelled(requestId);
+        }
+    };
+
+    /**
+     * Schedules a call to {@link #onUpdateData(int)}, merging it into an already pending one if
+     * possible.
+     *
+     * @param requestId The host's ID for this request, or 0 if the host isn't tracking it.
+     */
+    private void scheduleUpdate(int reason, int requestId) {
+        synchronized (mUpdateLock) {
+            if (requestId != 0) {
+                mPendingRequestIds.add(requestId);
+            }
+
+            if (mUpdatePending) {
+                // An update that hasn't started yet will cover this request too.
+                mPendingUpdateReason = mostSignificantUpdateReason(mPendingUpdateReason,
+                        reason);
+                ++mPendingUpdateRequestCount;
+                return;
+            }
+
+            mUpdatePending = true;
+            mPendingUpdateReason = reason;
+            mPendingUpdateRequestCount = 1;
+        }
+
+        // Do this in a separate thread
+        mServiceHandler.post(mUpdateRunnable);
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int reason;
+            int[] requestIds;
+            synchronized (mUpdateLock) {
+                reason = mPendingUpdateReason;
+                mCoalescedUpdateCount = mPendingUpdateRequestCount;
+                mUpdatePending = false;
+
+                requestIds = new int[mPendingRequestIds.size()];
+                for (int i = 0; i < requestIds.length; i++) {
+                    requestIds[i] = mPendingRequestIds.get(i);
+                }
+                mPendingRequestIds.clear();
+            }
+
+            dispatchUpdate(reason, requestIds);
         }
     };
 
+    /**
+     * Runs an update on the extension's worker thread. The given host request IDs are reported
+     * as complete once {@link #onUpdateData(int)} returns. Overridden by
+     * {@link AsyncDashClockExtension}, which completes requests when the extension says so.
+     */
+    void dispatchUpdate(int reason, int[] requestIds) {
+        onUpdateData(reason);
+        completeUpdateRequests(requestIds);
+    }
+
+    /**
+     * Called on a binder thread when the host cancels an update request that has already been
+     * dispatched.
+     */
+    void onUpdateRequestCancelled(int requestId) {
+    }
+
+    /**
+     * Tells the host that it no longer needs to wait for the given update requests.
+     */
+    final void completeUpdateRequests(int[] requestIds) {
+        if (requestIds == null || requestIds.length == 0
+                || mHostProtocolVersion < 2 || mHost == null) {
+            return;
+        }
+
+        try {
+            for (int requestId : requestIds) {
+                mHost.onUpdateRequestComplete(requestId);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Couldn't report completed update requests.", e);
+        }
+    }
+
+    private static int getUpdateReasonSignificance(int reason) {
+        for (int i = UPDATE_REASON_SIGNIFICANCE.length - 1; i >= 0; i--) {
+            if (UPDATE_REASON_SIGNIFICANCE[i] == reason) {
+                return i;
+            }
+        }
+
+        // Treat reasons we don't know about like UPDATE_REASON_UNKNOWN.
+        return 0;
+    }
+
+    private static int mostSignificantUpdateReason(int reason1, int reason2) {
+        return (getUpdateReasonSignificance(reason2) > getUpdateReasonSignificance(reason1))
+                ? reason2 : reason1;
+    }
+
+    /**
+     * Returns the number of update requests covered by the current call to
+     * {@link #onUpdateData(int)}. When requests arrive faster than the extension can handle
+     * them, pending requests are merged into a single call whose reason is the most significant
+     * of the merged reasons (for example, {@link #UPDATE_REASON_SETTINGS_CHANGED} wins over
+     * {@link #UPDATE_REASON_PERIODIC}). Only meaningful when called from
+     * {@link #onUpdateData(int)}.
+     */
+    protected final int getCoalescedUpdateCount() {
+        return mCoalescedUpdateCount;
+    }
+
     /**
      * Called when a connection with the main DashClock app has been established or re-established
      * after a previous one was lost. In this latter case, the parameter <code>isReconnect</code>
@@ -281,10 +498,126 @@ public abstract class DashClockExtension extends Service {
      *             the extension from view).
      */
     protected final void publishUpdate(ExtensionData data) {
-        try {
-            mHost.publishUpdate(data);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't publish updated extension data.", e);
+        synchronized (mPublishLock) {
+            if (mHasPublished && ExtensionData.equals(mLastPublishedData, data)) {
+                // DashClock already has this exact data; skip the call into its process.
+                ++mSuppressedPublishCount;
+                onDataPublished(data);
+                return;
+            }
+
+            try {
+                if (data != null) {
+                    // Hosts speaking protocol version 2 or later can read the compact parcel
+                    // format.
+                    data.setWriteParcelableVersion(mHostProtocolVersion >= 2
+                            ? ExtensionData.PARCELABLE_VERSION : 1);
+                }
+                mHost.publishUpdate(data);
+                mLastPublishedData = (data == null) ? null : data.copy();
+                mHasPublished = true;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+                return;
+            }
+
+            onDataPublished(data);
+        }
+    }
+
+    /**
+     * Called after the main DashClock app has been given the given data, or already had it.
+     * Used by {@link CachingDashClockExtension} to keep track of published data.
+     */
+    void onDataPublished(ExtensionData data) {
+    }
+
+    /**
+     * Publishes a timeline of data, each entry of which is shown starting at its given time,
+     * until the next entry's time. This lets the main DashClock app keep time-sensitive data
+     * (such as "in 5 mins") current without waking the extension up. Publishing regular data
+     * with {@link #publishUpdate(ExtensionData)} replaces any timeline.
+     *
+     * <p>
+     * Timelines need a DashClock app that speaks protocol version 2 or later. With older
+     * versions, only the entry that should currently be shown is published.
+     *
+     * @param validFromTimes The times, in milliseconds since the epoch, starting at which each
+     *                       entry should be shown. Must be in ascending order.
+     * @param entries        The data to show for each time, or <code>null</code> to hide the
+     *                       extension starting at that time.
+     * @return Whether or not the whole timeline was published. If not, the extension should
+     * arrange to be updated as the data changes, for example with
+     * {@link #setUpdateWhenScreenOn(boolean)}.
+     */
+    protected final boolean publishUpdateTimeline(long[] validFromTimes, ExtensionData[] entries) {
+        if (validFromTimes == null || entries == null || validFromTimes.length == 0
+                || validFromTimes.length != entries.length) {
+            throw new IllegalArgumentException("Timeline times and entries must be non-empty "
+                    + "and of the same length.");
+        }
+
+        for (int i = 1; i < validFromTimes.length; i++) {
+            if (validFromTimes[i] < validFromTimes[i - 1]) {
+                throw new IllegalArgumentException("Timeline times must be in ascending order.");
+            }
+        }
+
+        if (mHostProtocolVersion < 2) {
+            long now = System.currentTimeMillis();
+            int current = 0;
+            for (int i = 1; i < validFromTimes.length; i++) {
+                if (validFromTimes[i] <= now) {
+                    current = i;
+                }
+            }
+
+            publishUpdate(entries[current]);
+            return false;
+        }
+
+        synchronized (mPublishLock) {
+            try {
+                for (ExtensionData entry : entries) {
+                    if (entry != null) {
+                        entry.setWriteParcelableVersion(ExtensionData.PARCELABLE_VERSION);
+                    }
+                }
+                mHost.publishUpdateTimeline(validFromTimes, entries);
+
+                // What DashClock shows now depends on the time, so don't skip the next
+                // publishUpdate() call.
+                mHasPublished = false;
+                mLastPublishedData = null;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish extension data timeline.", e);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Ensures that the next call to {@link #publishUpdate(ExtensionData)} reaches the main
+     * DashClock app even if the data is identical to what was last published. By default,
+     * identical data is only sent once per connection. This is called automatically whenever a
+     * connection is established or re-established.
+     */
+    protected final void requestRepublish() {
+        synchronized (mPublishLock) {
+            mHasPublished = false;
+            mLastPublishedData = null;
+        }
+    }
+
+    /**
+     * Returns the number of calls to {@link #publishUpdate(ExtensionData)} that were skipped
+     * because the data was identical to the last published data.
+     */
+    protected final int getSuppressedPublishCount() {
+        synchronized (mPublishLock) {
+            return mSuppressedPublishCount;
         }
     }
 
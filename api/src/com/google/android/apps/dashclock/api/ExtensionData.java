@@ -70,13 +70,28 @@ public class ExtensionData implements Parcelable {
      * Since there might be a case where new versions of DashClock use extensions running
      * old versions of the protocol (and thus old versions of this class), we need a versioning
      * system for the parcels sent between the core app and its extensions.
+     *
+     * <p>
+     * Version 1 parcels contain every field, in order. Version 2 and later parcels are
+     * length-prefixed and start with a bitmask of the fields that are present, so that readers
+     * can skip fields they don't know about. Version 2 parcels are only written once the host
+     * has indicated that it can read them.
      */
-    public static final int PARCELABLE_VERSION = 1;
+    public static final int PARCELABLE_VERSION = 3;
 
     /**
      * The number of fields in this version of the parcelable.
      */
-    public static final int PARCELABLE_SIZE = 6;
+    public static final int PARCELABLE_SIZE = 8;
+
+    private static final int FIELD_VISIBLE = 1 << 0;
+    private static final int FIELD_ICON = 1 << 1;
+    private static final int FIELD_STATUS = 1 << 2;
+    private static final int FIELD_EXPANDED_TITLE = 1 << 3;
+    private static final int FIELD_EXPANDED_BODY = 1 << 4;
+    private static final int FIELD_CLICK_INTENT = 1 << 5;
+    private static final int FIELD_PUBLISHED_AT = 1 << 6;
+    private static final int FIELD_EXPIRES_AT = 1 << 7;
 
     private static final String KEY_VISIBLE = "visible";
     private static final String KEY_ICON = "icon";
@@ -84,6 +99,8 @@ public class ExtensionData implements Parcelable {
     private static final String KEY_EXPANDED_TITLE = "title";
     private static final String KEY_EXPANDED_BODY = "body";
     private static final String KEY_CLICK_INTENT = "click_intent";
+    private static final String KEY_PUBLISHED_AT = "published_at";
+    private static final String KEY_EXPIRES_AT = "expires_at";
 
     /**
      * The maximum length for {@link #status(String)}. Enforced by {@link #clean()}.
@@ -106,6 +123,13 @@ public class ExtensionData implements Parcelable {
     private String mExpandedTitle = null;
     private String mExpandedBody = null;
     private Intent mClickIntent = null;
+    private long mPublishedAt = 0;
+    private long mExpiresAt = 0;
+
+    /**
+     * The parcelable version to use in {@link #writeToParcel(Parcel, int)}. Not part of the data.
+     */
+    private int mWriteParcelableVersion = 1;
 
     public ExtensionData() {
     }
@@ -223,6 +247,67 @@ public class ExtensionData implements Parcelable {
         return this;
     }
 
+    /**
+     * Returns the time at which this data was published, in milliseconds since the epoch, or 0
+     * if unknown. Default 0.
+     */
+    public long publishedAt() {
+        return mPublishedAt;
+    }
+
+    /**
+     * Sets the time at which this data was published, in milliseconds since the epoch. If this
+     * isn't set, DashClock uses the time at which it received the data. Not considered by
+     * {@link #equals(Object)}. Default 0.
+     */
+    public ExtensionData publishedAt(long publishedAt) {
+        mPublishedAt = publishedAt;
+        return this;
+    }
+
+    /**
+     * Returns the time after which this data should no longer be shown, in milliseconds since
+     * the epoch, or 0 if it doesn't expire. Default 0.
+     */
+    public long expiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * Sets the time after which this data should no longer be shown, in milliseconds since the
+     * epoch, or 0 if it doesn't expire. DashClock hides expired data and asks the extension for
+     * an update shortly before the data expires. Default 0.
+     */
+    public ExtensionData expiresAt(long expiresAt) {
+        mExpiresAt = expiresAt;
+        return this;
+    }
+
+    /**
+     * Returns whether or not this data has expired as of the given time.
+     *
+     * @see #expiresAt(long)
+     */
+    public boolean isExpired(long now) {
+        return mExpiresAt > 0 && now >= mExpiresAt;
+    }
+
+    /**
+     * Returns a copy of this object, including a copy of its click intent.
+     */
+    ExtensionData copy() {
+        ExtensionData copy = new ExtensionData();
+        copy.mVisible = mVisible;
+        copy.mIcon = mIcon;
+        copy.mStatus = mStatus;
+        copy.mExpandedTitle = mExpandedTitle;
+        copy.mExpandedBody = mExpandedBody;
+        copy.mClickIntent = (mClickIntent == null) ? null : new Intent(mClickIntent);
+        copy.mPublishedAt = mPublishedAt;
+        copy.mExpiresAt = mExpiresAt;
+        return copy;
+    }
+
     /**
      * Serializes the contents of this object to JSON.
      */
@@ -234,6 +319,8 @@ public class ExtensionData implements Parcelable {
         data.put(KEY_EXPANDED_TITLE, mExpandedTitle);
         data.put(KEY_EXPANDED_BODY, mExpandedBody);
         data.put(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
+        data.put(KEY_PUBLISHED_AT, mPublishedAt);
+        data.put(KEY_EXPIRES_AT, mExpiresAt);
         return data;
     }
 
@@ -251,6 +338,8 @@ public class ExtensionData implements Parcelable {
             this.mClickIntent = Intent.parseUri(data.optString(KEY_CLICK_INTENT), 0);
         } catch (URISyntaxException ignored) {
         }
+        this.mPublishedAt = data.optLong(KEY_PUBLISHED_AT);
+        this.mExpiresAt = data.optLong(KEY_EXPIRES_AT);
     }
 
     /**
@@ -264,6 +353,8 @@ public class ExtensionData implements Parcelable {
         data.putString(KEY_EXPANDED_TITLE, mExpandedTitle);
         data.putString(KEY_EXPANDED_BODY, mExpandedBody);
         data.putString(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
+        data.putLong(KEY_PUBLISHED_AT, mPublishedAt);
+        data.putLong(KEY_EXPIRES_AT, mExpiresAt);
         return data;
     }
 
@@ -281,6 +372,8 @@ public class ExtensionData implements Parcelable {
             this.mClickIntent = Intent.parseUri(src.getString(KEY_CLICK_INTENT), 0);
         } catch (URISyntaxException ignored) {
         }
+        this.mPublishedAt = src.getLong(KEY_PUBLISHED_AT, 0);
+        this.mExpiresAt = src.getLong(KEY_EXPIRES_AT, 0);
     }
 
     /**
@@ -300,6 +393,11 @@ public class ExtensionData implements Parcelable {
     private ExtensionData(Parcel in) {
         int parcelableVersion = in.readInt();
         int parcelableSize = in.readInt();
+        if (parcelableVersion >= 2) {
+            readFromParcelV2(in);
+            return;
+        }
+
         // Version 1 below
         if (parcelableVersion >= 1) {
             this.mVisible = (in.readInt() != 0);
@@ -321,22 +419,73 @@ public class ExtensionData implements Parcelable {
             } catch (URISyntaxException ignored) {
             }
         }
+
+        // Version 1 parcels always contain exactly the fields read above; new fields are only
+        // ever added to the length-prefixed layout read by readFromParcelV2.
+    }
+
+    private void readFromParcelV2(Parcel in) {
+        int payloadLength = in.readInt();
+        int payloadStart = in.dataPosition();
+        int fields = in.readInt();
+
         // Version 2 below
+        this.mVisible = (fields & FIELD_VISIBLE) != 0;
+        if ((fields & FIELD_ICON) != 0) {
+            this.mIcon = in.readInt();
+        }
+        if ((fields & FIELD_STATUS) != 0) {
+            this.mStatus = in.readString();
+        }
+        if ((fields & FIELD_EXPANDED_TITLE) != 0) {
+            this.mExpandedTitle = in.readString();
+        }
+        if ((fields & FIELD_EXPANDED_BODY) != 0) {
+            this.mExpandedBody = in.readString();
+        }
+        if ((fields & FIELD_CLICK_INTENT) != 0) {
+            try {
+                this.mClickIntent = Intent.parseUri(in.readString(), 0);
+            } catch (URISyntaxException ignored) {
+            }
+        }
+        // Version 3 below
+        if ((fields & FIELD_PUBLISHED_AT) != 0) {
+            this.mPublishedAt = in.readLong();
+        }
+        if ((fields & FIELD_EXPIRES_AT) != 0) {
+            this.mExpiresAt = in.readLong();
+        }
+        // Version 4 below
+
+        // Skip any fields we don't know about.
+        in.setDataPosition(payloadStart + payloadLength);
+    }
 
-        // Skip any fields we don't know about. For example, if our current version's
-        // PARCELABLE_SIZE is 6 and the input parcelableSize is 12, skip the 6 fields we
-        // haven't read yet (from above) since we don't know about them.
-        in.setDataPosition(in.dataPosition() + (PARCELABLE_SIZE - parcelableSize));
+    /**
+     * Sets the parcelable version that {@link #writeToParcel(Parcel, int)} should use, capped to
+     * {@link #PARCELABLE_VERSION}. Readers of version 2 can read any later version, skipping
+     * fields they don't know about, so this only needs to distinguish between version 1 readers
+     * and the rest.
+     */
+    void setWriteParcelableVersion(int parcelableVersion) {
+        mWriteParcelableVersion = Math.min(parcelableVersion, PARCELABLE_VERSION);
     }
 
     @Override
-    public void writeToParcel(Parcel parcel, int i) {
+    public void writeToParcel(Parcel parcel, int flags) {
         /**
          * NOTE: When adding fields in the process of updating this API, make sure to bump
-         * {@link #PARCELABLE_VERSION} and modify {@link #PARCELABLE_SIZE}.
+         * {@link #PARCELABLE_VERSION} and modify {@link #PARCELABLE_SIZE}. New fields should
+         * only be written by writeToParcelV2 and must be appended after all existing fields.
          */
-        parcel.writeInt(PARCELABLE_VERSION);
-        parcel.writeInt(PARCELABLE_SIZE);
+        if (mWriteParcelableVersion >= 2) {
+            writeToParcelV2(parcel, flags);
+            return;
+        }
+
+        parcel.writeInt(1);
+        parcel.writeInt(6);
         // Version 1 below
         parcel.writeInt(mVisible ? 1 : 0);
         parcel.writeInt(mIcon);
@@ -344,7 +493,59 @@ public class ExtensionData implements Parcelable {
         parcel.writeString(TextUtils.isEmpty(mExpandedTitle) ? "" : mExpandedTitle);
         parcel.writeString(TextUtils.isEmpty(mExpandedBody) ? "" : mExpandedBody);
         parcel.writeString((mClickIntent == null) ? "" : mClickIntent.toUri(0));
+    }
+
+    private void writeToParcelV2(Parcel parcel, int flags) {
+        parcel.writeInt(PARCELABLE_VERSION);
+        parcel.writeInt(PARCELABLE_SIZE);
+
+        // Reserve space for the payload length, filled in once the payload is written.
+        int lengthPosition = parcel.dataPosition();
+        parcel.writeInt(0);
+        int payloadStart = parcel.dataPosition();
+
+        int fields = 0;
+        fields |= mVisible ? FIELD_VISIBLE : 0;
+        fields |= (mIcon != 0) ? FIELD_ICON : 0;
+        fields |= !TextUtils.isEmpty(mStatus) ? FIELD_STATUS : 0;
+        fields |= !TextUtils.isEmpty(mExpandedTitle) ? FIELD_EXPANDED_TITLE : 0;
+        fields |= !TextUtils.isEmpty(mExpandedBody) ? FIELD_EXPANDED_BODY : 0;
+        fields |= (mClickIntent != null) ? FIELD_CLICK_INTENT : 0;
+        fields |= (mPublishedAt != 0) ? FIELD_PUBLISHED_AT : 0;
+        fields |= (mExpiresAt != 0) ? FIELD_EXPIRES_AT : 0;
+        parcel.writeInt(fields);
+
         // Version 2 below
+        if ((fields & FIELD_ICON) != 0) {
+            parcel.writeInt(mIcon);
+        }
+        if ((fields & FIELD_STATUS) != 0) {
+            parcel.writeString(mStatus);
+        }
+        if ((fields & FIELD_EXPANDED_TITLE) != 0) {
+            parcel.writeString(mExpandedTitle);
+        }
+        if ((fields & FIELD_EXPANDED_BODY) != 0) {
+            parcel.writeString(mExpandedBody);
+        }
+        if ((fields & FIELD_CLICK_INTENT) != 0) {
+            // Sent as a URI, like in version 1, so that the host never has to unparcel extras
+            // of classes it doesn't have (e.g. custom Parcelables), which would crash it.
+            parcel.writeString(mClickIntent.toUri(0));
+        }
+        // Version 3 below
+        if ((fields & FIELD_PUBLISHED_AT) != 0) {
+            parcel.writeLong(mPublishedAt);
+        }
+        if ((fields & FIELD_EXPIRES_AT) != 0) {
+            parcel.writeLong(mExpiresAt);
+        }
+        // Version 4 below
+
+        int payloadEnd = parcel.dataPosition();
+        parcel.setDataPosition(lengthPosition);
+        parcel.writeInt(payloadEnd - payloadStart);
+        parcel.setDataPosition(payloadEnd);
     }
 
     @Override
@@ -366,18 +567,37 @@ public class ExtensionData implements Parcelable {
                     && TextUtils.equals(other.mStatus, mStatus)
                     && TextUtils.equals(other.mExpandedTitle, mExpandedTitle)
                     && TextUtils.equals(other.mExpandedBody, mExpandedBody)
-                    && intentEquals(other.mClickIntent, mClickIntent);
+                    && intentEquals(other.mClickIntent, mClickIntent)
+                    && other.mExpiresAt == mExpiresAt;
 
         } catch (ClassCastException e) {
             return false;
         }
     }
 
+    @Override
+    public int hashCode() {
+        int result = (mVisible ? 1 : 0);
+        result = 31 * result + mIcon;
+        result = 31 * result + (mStatus != null ? mStatus.hashCode() : 0);
+        result = 31 * result + (mExpandedTitle != null ? mExpandedTitle.hashCode() : 0);
+        result = 31 * result + (mExpandedBody != null ? mExpandedBody.hashCode() : 0);
+        result = 31 * result + (mClickIntent != null ? mClickIntent.filterHashCode() : 0);
+        result = 31 * result + (int) (mExpiresAt ^ (mExpiresAt >>> 32));
+        return result;
+    }
+
+    /**
+     * Compares intents by content rather than identity, since extensions generally build a new
+     * click intent for each update.
+     */
     private static boolean intentEquals(Intent x, Intent y) {
         if (x == null || y == null) {
             return x == y;
+        } else if (x == y) {
+            return true;
         } else {
-            return x.equals(y);
+            return x.filterEquals(y) && TextUtils.equals(x.toUri(0), y.toUri(0));
         }
     }
 
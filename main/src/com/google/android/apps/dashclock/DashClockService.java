@@ -55,6 +55,14 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
     public static final String EXTRA_UPDATE_REASON =
             "com.google.android.apps.dashclock.extra.UPDATE_REASON";
 
+    /**
+     * Intent action for applying time-based changes to extension data: switching extensions
+     * with published timelines to their current entries, hiding expired data and asking
+     * extensions for updates before their data expires.
+     */
+    public static final String ACTION_APPLY_SCHEDULED_CHANGES =
+            "com.google.android.apps.dashclock.action.APPLY_SCHEDULED_CHANGES";
+
     private ExtensionManager mExtensionManager;
     private ExtensionHost mExtensionHost;
 
@@ -64,6 +72,10 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
         mExtensionHost = new ExtensionHost(this);
+
+        // Catch up on scheduled changes and re-arm their alarm, in case the process was
+        // restarted.
+        handleApplyScheduledChanges();
     }
 
     @Override
@@ -82,6 +94,9 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
 
             } else if (ACTION_UPDATE_EXTENSIONS.equals(action)) {
                 handleUpdateExtensions(intent);
+
+            } else if (ACTION_APPLY_SCHEDULED_CHANGES.equals(action)) {
+                handleApplyScheduledChanges();
             }
         }
 
@@ -129,14 +144,31 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
         if (intent.hasExtra(EXTRA_COMPONENT_NAME)) {
             ComponentName cn = ComponentName.unflattenFromString(
                     intent.getStringExtra(EXTRA_COMPONENT_NAME));
-            mExtensionHost.execute(cn, ExtensionHost.UPDATE_OPERATIONS.get(reason));
+            mExtensionHost.requestUpdate(cn, reason);
         } else {
             for (ComponentName cn : mExtensionManager.getActiveExtensionNames()) {
-                mExtensionHost.execute(cn, ExtensionHost.UPDATE_OPERATIONS.get(reason));
+                if (reason == DashClockExtension.UPDATE_REASON_PERIODIC
+                        && mExtensionManager.isRefreshScheduled(cn)) {
+                    // This extension's data says how long it's good for, and it'll be asked
+                    // for an update before then.
+                    continue;
+                }
+
+                mExtensionHost.requestUpdate(cn, reason);
             }
         }
     }
 
+    /**
+     * Applies time-based changes to extension data, and asks extensions whose data is about to
+     * expire for updates.
+     */
+    private void handleApplyScheduledChanges() {
+        for (ComponentName cn : mExtensionManager.applyScheduledChanges()) {
+            mExtensionHost.requestUpdate(cn, DashClockExtension.UPDATE_REASON_PERIODIC);
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -36,6 +36,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.SparseArray;
 
@@ -49,7 +50,10 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
 import static com.google.android.apps.dashclock.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.LogUtils.LOGV;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
 
 /**
  * The primary local-process endpoint that deals with extensions. Instances of this class are in
@@ -63,7 +67,20 @@ public class ExtensionHost {
     // TODO: this class badly needs inline docs
     private static final String TAG = LogUtils.makeLogTag(ExtensionHost.class);
 
-    private static final int CURRENT_EXTENSION_PROTOCOL_VERSION = 1;
+    private static final int CURRENT_EXTENSION_PROTOCOL_VERSION = 2;
+
+    /**
+     * How long to wait for a tracked update request to complete before giving up on it.
+     */
+    private static final long UPDATE_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final long WAKEUP_REPORT_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * How long to hold off re-rendering after the screen turns on while waiting for extensions
+     * to respond to screen-on updates.
+     */
+    private static final long SCREEN_ON_RENDER_DEADLINE_MILLIS = 1500;
 
     private Context mContext;
     private Handler mClientThreadHandler = new Handler();
@@ -76,9 +93,26 @@ public class ExtensionHost {
     private final Set<ComponentName> mExtensionsToUpdateWhenScreenOn = new HashSet<ComponentName>();
     private boolean mScreenOnReceiverRegistered = false;
 
+    /**
+     * Screen-on refresh state. Only access on the client (main) thread.
+     */
+    private boolean mScreenOnRefreshActive = false;
+    private final Set<ComponentName> mAwaitingScreenOnRefresh = new HashSet<ComponentName>();
+    private int mScreenOnRefreshCount = 0;
+    private long mScreenOnTime;
+
     private volatile Looper mAsyncLooper;
     private volatile Handler mAsyncHandler;
 
+    /**
+     * Update request bookkeeping. Only access on the async thread.
+     */
+    private int mLastUpdateRequestId = 0;
+    private int mSupersededUpdateRequestCount = 0;
+    private int mTimedOutUpdateRequestCount = 0;
+    private int mExtensionWakeupCount = 0;
+    private long mExtensionWakeupCountStartTime = SystemClock.elapsedRealtime();
+
     public ExtensionHost(Service context) {
         mContext = context;
         mExtensionManager = ExtensionManager.getInstance(context);
@@ -94,6 +128,9 @@ public class ExtensionHost {
     }
 
     public void destroy() {
+        if (mScreenOnRefreshActive) {
+            finishScreenOnRefresh(false);
+        }
         mExtensionManager.removeOnChangeListener(mChangeListener);
         if (mScreenOnReceiverRegistered) {
             mContext.unregisterReceiver(mScreenOnReceiver);
@@ -144,8 +181,8 @@ public class ExtensionHost {
         conn.contentObserver = new ContentObserver(mClientThreadHandler) {
             @Override
             public void onChange(boolean selfChange) {
-                execute(conn.componentName,
-                        UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED));
+                requestUpdate(conn.componentName,
+                        DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
             }
         };
         conn.hostInterface = makeHostInterface(conn);
@@ -154,6 +191,7 @@ public class ExtensionHost {
             public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
                 conn.ready = true;
                 conn.binder = IExtension.Stub.asInterface(iBinder);
+                conn.protocolVersion = 1;
 
                 // Initialize the service
                 execute(conn, new Operation() {
@@ -163,12 +201,15 @@ public class ExtensionHost {
                         // AsyncHandler thread. Also, since this is a 'oneway' call,
                         // when used with remote extensions, this call does not block.
                         extension.onInitialize(conn.hostInterface, isReconnect);
+
+                        // Let the extension know which protocol features it can use. Extensions
+                        // built against protocol version 1 simply ignore this call.
+                        extension.setHostProtocolVersion(CURRENT_EXTENSION_PROTOCOL_VERSION);
                     }
                 });
 
                 if (!isReconnect) {
-                    execute(conn.componentName,
-                            UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_INITIAL));
+                    requestUpdate(conn.componentName, DashClockExtension.UPDATE_REASON_INITIAL);
                 }
 
                 // Execute operations that were deferred until the service was available.
@@ -187,6 +228,7 @@ public class ExtensionHost {
                 conn.serviceConnection = null;
                 conn.binder = null;
                 conn.ready = false;
+                clearInFlightUpdateRequests(conn);
                 mClientThreadHandler.post(new Runnable() {
                     @Override
                     public void run() {
@@ -220,6 +262,49 @@ public class ExtensionHost {
 
                 // TODO: this needs to be thread-safe
                 mExtensionManager.updateExtensionData(conn.componentName, data);
+                onExtensionResponded(conn.componentName);
+            }
+
+            @Override
+            public void setExtensionProtocolVersion(int protocolVersion)
+                    throws RemoteException {
+                conn.protocolVersion = protocolVersion;
+            }
+
+            @Override
+            public void onUpdateRequestComplete(final int requestId) throws RemoteException {
+                mAsyncHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        UpdateRequest request = conn.inFlightRequests.get(requestId);
+                        if (request == null) {
+                            // Already timed out or superseded.
+                            return;
+                        }
+
+                        conn.inFlightRequests.remove(requestId);
+                        mAsyncHandler.removeCallbacks(request.timeoutRunnable);
+                        LOGV(TAG, "Update request " + requestId + " for "
+                                + conn.componentName.flattenToShortString() + " completed in "
+                                + (SystemClock.elapsedRealtime() - request.startTime) + "ms");
+                        onExtensionResponded(conn.componentName);
+                    }
+                });
+            }
+
+            @Override
+            public void publishUpdateTimeline(long[] validFromTimes, ExtensionData[] entries)
+                    throws RemoteException {
+                if (validFromTimes == null || entries == null || validFromTimes.length == 0
+                        || validFromTimes.length != entries.length) {
+                    LOGW(TAG, "Ignoring malformed timeline from "
+                            + conn.componentName.flattenToShortString());
+                    return;
+                }
+
+                mExtensionManager.updateExtensionTimeline(conn.componentName, validFromTimes,
+                        entries);
+                onExtensionResponded(conn.componentName);
             }
 
             @Override
@@ -270,6 +355,7 @@ public class ExtensionHost {
         }
 
         conn.binder = null;
+        clearInFlightUpdateRequests(conn);
         mContext.unbindService(conn.serviceConnection);
         conn.serviceConnection = null;
     }
@@ -316,55 +402,254 @@ public class ExtensionHost {
     }
 
     public void execute(ComponentName cn, Operation operation) {
+        Connection conn = getOrCreateConnection(cn);
+        if (conn == null) {
+            LOGE(TAG, "Couldn't connect to extension to perform operation; operation "
+                    + "canceled.");
+            return;
+        }
+
+        execute(conn, operation);
+    }
+
+    /**
+     * Asks the given extension for updated data. Extensions speaking protocol version 2 or later
+     * receive a tracked request, which supersedes any of their requests still in flight and
+     * times out after {@link #UPDATE_REQUEST_TIMEOUT_MILLIS}.
+     */
+    public void requestUpdate(ComponentName cn, int reason) {
+        Connection conn = getOrCreateConnection(cn);
+        if (conn == null) {
+            LOGE(TAG, "Couldn't connect to extension to request an update; update canceled.");
+            return;
+        }
+
+        execute(conn, new UpdateOperation(conn, reason));
+    }
+
+    private Connection getOrCreateConnection(ComponentName cn) {
         Connection conn = mExtensionConnections.get(cn);
         if (conn == null) {
             conn = createConnection(cn, true);
             if (conn != null) {
                 mExtensionConnections.put(cn, conn);
-            } else {
-                LOGE(TAG, "Couldn't connect to extension to perform operation; operation "
-                        + "canceled.");
-                return;
             }
         }
 
-        execute(conn, operation);
+        return conn;
+    }
+
+    /**
+     * Forgets about a connection's in-flight update requests, e.g. because the connection went
+     * away.
+     */
+    private void clearInFlightUpdateRequests(final Connection conn) {
+        mAsyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < conn.inFlightRequests.size(); i++) {
+                    mAsyncHandler.removeCallbacks(conn.inFlightRequests.valueAt(i).timeoutRunnable);
+                }
+                conn.inFlightRequests.clear();
+            }
+        });
     }
 
     private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            synchronized (mExtensionsToUpdateWhenScreenOn) {
-                for (ComponentName cn : mExtensionsToUpdateWhenScreenOn) {
-                    execute(cn, UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_SCREEN_ON));
+            startScreenOnRefresh();
+        }
+    };
+
+    /**
+     * Refreshes extensions that asked to be updated when the screen turns on. Cached data is
+     * rendered right away (with timeline transitions and expiry applied), while updated data is
+     * rendered in one go once every extension has responded, or after
+     * {@link #SCREEN_ON_RENDER_DEADLINE_MILLIS}.
+     */
+    private void startScreenOnRefresh() {
+        if (mScreenOnRefreshActive) {
+            finishScreenOnRefresh(false);
+        }
+
+        // Bring cached data up to date; any resulting re-render isn't held back.
+        List<ComponentName> expiringExtensions = mExtensionManager.applyScheduledChanges();
+
+        // Refresh visible extensions first, in the order they're shown.
+        List<ComponentName> visible = new ArrayList<ComponentName>();
+        List<ComponentName> hidden = new ArrayList<ComponentName>();
+        synchronized (mExtensionsToUpdateWhenScreenOn) {
+            for (ExtensionManager.ExtensionWithData ci
+                    : mExtensionManager.getActiveExtensionsWithData()) {
+                if (!mExtensionsToUpdateWhenScreenOn.contains(ci.componentName)) {
+                    continue;
                 }
+
+                (ci.isVisibleNow() ? visible : hidden).add(ci.componentName);
             }
         }
-    };
 
-    static final SparseArray<Operation> UPDATE_OPERATIONS = new SparseArray<Operation>();
+        if (visible.isEmpty() && hidden.isEmpty()) {
+            for (ComponentName cn : expiringExtensions) {
+                requestUpdate(cn, DashClockExtension.UPDATE_REASON_PERIODIC);
+            }
+            return;
+        }
 
-    static {
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_UNKNOWN);
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_INITIAL);
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_PERIODIC);
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_SETTINGS_CHANGED);
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
-        _createUpdateOperation(DashClockExtension.UPDATE_REASON_SCREEN_ON);
+        mScreenOnRefreshActive = true;
+        mScreenOnTime = SystemClock.elapsedRealtime();
+        mAwaitingScreenOnRefresh.clear();
+        mAwaitingScreenOnRefresh.addAll(visible);
+        mAwaitingScreenOnRefresh.addAll(hidden);
+        mScreenOnRefreshCount = mAwaitingScreenOnRefresh.size();
+        mExtensionManager.holdChangeNotifications();
+
+        for (ComponentName cn : visible) {
+            requestUpdate(cn, DashClockExtension.UPDATE_REASON_SCREEN_ON);
+        }
+        for (ComponentName cn : hidden) {
+            requestUpdate(cn, DashClockExtension.UPDATE_REASON_SCREEN_ON);
+        }
+        for (ComponentName cn : expiringExtensions) {
+            if (!mAwaitingScreenOnRefresh.contains(cn)) {
+                requestUpdate(cn, DashClockExtension.UPDATE_REASON_PERIODIC);
+            }
+        }
+
+        mClientThreadHandler.postDelayed(mScreenOnDeadlineRunnable,
+                SCREEN_ON_RENDER_DEADLINE_MILLIS);
     }
 
-    private static void _createUpdateOperation(final int reason) {
-        UPDATE_OPERATIONS.put(reason, new ExtensionHost.Operation() {
+    /**
+     * Called from any thread when an extension publishes data or completes an update request.
+     */
+    private void onExtensionResponded(final ComponentName cn) {
+        mClientThreadHandler.post(new Runnable() {
             @Override
-            public void run(IExtension extension) throws RemoteException {
-                // Note that this is protected from ANRs since it runs in the AsyncHandler thread.
-                // Also, since this is a 'oneway' call, when used with remote extensions, this call
-                // does not block.
-                extension.onUpdate(reason);
+            public void run() {
+                if (mScreenOnRefreshActive && mAwaitingScreenOnRefresh.remove(cn)
+                        && mAwaitingScreenOnRefresh.isEmpty()) {
+                    finishScreenOnRefresh(true);
+                }
             }
         });
     }
 
+    private final Runnable mScreenOnDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mScreenOnRefreshActive) {
+                finishScreenOnRefresh(false);
+            }
+        }
+    };
+
+    private void finishScreenOnRefresh(boolean allResponded) {
+        mClientThreadHandler.removeCallbacks(mScreenOnDeadlineRunnable);
+        mScreenOnRefreshActive = false;
+        LOGD(TAG, "Screen-on to fresh data: "
+                + (SystemClock.elapsedRealtime() - mScreenOnTime) + "ms, "
+                + (mScreenOnRefreshCount - mAwaitingScreenOnRefresh.size()) + "/"
+                + mScreenOnRefreshCount + " extensions responded"
+                + (allResponded ? "" : " (deadline reached)"));
+        mAwaitingScreenOnRefresh.clear();
+        mExtensionManager.releaseChangeNotifications();
+    }
+
+    /**
+     * An update operation that, for extensions that support it, is tracked until the extension
+     * reports it complete. Will be run on the async thread.
+     */
+    private class UpdateOperation implements Operation {
+        private final Connection mConnection;
+        private final int mReason;
+
+        private UpdateOperation(Connection conn, int reason) {
+            mConnection = conn;
+            mReason = reason;
+        }
+
+        @Override
+        public void run(IExtension extension) throws RemoteException {
+            countExtensionWakeup();
+
+            if (mConnection.protocolVersion < 2) {
+                // Note that this is protected from ANRs since it runs in the AsyncHandler
+                // thread. Also, since this is a 'oneway' call, when used with remote extensions,
+                // this call does not block.
+                extension.onUpdate(mReason);
+                return;
+            }
+
+            // A new request makes any in-flight ones moot.
+            SparseArray<UpdateRequest> inFlightRequests = mConnection.inFlightRequests;
+            for (int i = 0; i < inFlightRequests.size(); i++) {
+                UpdateRequest superseded = inFlightRequests.valueAt(i);
+                mAsyncHandler.removeCallbacks(superseded.timeoutRunnable);
+                extension.cancelUpdateRequest(superseded.requestId);
+                ++mSupersededUpdateRequestCount;
+            }
+            inFlightRequests.clear();
+
+            final UpdateRequest request = new UpdateRequest();
+            request.requestId = ++mLastUpdateRequestId;
+            request.startTime = SystemClock.elapsedRealtime();
+            request.timeoutRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (mConnection.inFlightRequests.get(request.requestId) != request) {
+                        return;
+                    }
+
+                    mConnection.inFlightRequests.remove(request.requestId);
+                    ++mTimedOutUpdateRequestCount;
+                    LOGW(TAG, "Update request " + request.requestId + " for "
+                            + mConnection.componentName.flattenToShortString()
+                            + " timed out (" + mTimedOutUpdateRequestCount + " so far).");
+
+                    IExtension binder = mConnection.binder;
+                    if (binder != null) {
+                        try {
+                            binder.cancelUpdateRequest(request.requestId);
+                        } catch (RemoteException e) {
+                            LOGE(TAG, "Couldn't cancel timed out update request.", e);
+                        }
+                    }
+                }
+            };
+
+            inFlightRequests.put(request.requestId, request);
+            mAsyncHandler.postDelayed(request.timeoutRunnable, UPDATE_REQUEST_TIMEOUT_MILLIS);
+            try {
+                extension.onUpdateRequest(mReason, request.requestId);
+            } catch (RemoteException e) {
+                inFlightRequests.remove(request.requestId);
+                mAsyncHandler.removeCallbacks(request.timeoutRunnable);
+                throw e;
+            }
+
+            if (mSupersededUpdateRequestCount > 0) {
+                LOGD(TAG, "Superseded update requests so far: " + mSupersededUpdateRequestCount);
+            }
+        }
+    }
+
+    /**
+     * Keeps track of how often extensions are asked for updates, reporting it about once an
+     * hour. Only call on the async thread.
+     */
+    private void countExtensionWakeup() {
+        ++mExtensionWakeupCount;
+        long elapsed = SystemClock.elapsedRealtime() - mExtensionWakeupCountStartTime;
+        if (elapsed >= WAKEUP_REPORT_INTERVAL_MILLIS) {
+            LOGD(TAG, "Extension wakeups per hour: "
+                    + (mExtensionWakeupCount * WAKEUP_REPORT_INTERVAL_MILLIS / elapsed));
+            mExtensionWakeupCount = 0;
+            mExtensionWakeupCountStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
     public static boolean supportsProtocolVersion(int protocolVersion) {
         return protocolVersion > 0 && protocolVersion <= CURRENT_EXTENSION_PROTOCOL_VERSION;
     }
@@ -376,8 +661,15 @@ public class ExtensionHost {
         void run(IExtension extension) throws RemoteException;
     }
 
+    private static class UpdateRequest {
+        int requestId;
+        long startTime;
+        Runnable timeoutRunnable;
+    }
+
     private static class Connection {
         boolean ready = false;
+        volatile int protocolVersion = 1;
         ComponentName componentName;
         ServiceConnection serviceConnection;
         IExtension binder;
@@ -388,5 +680,11 @@ public class ExtensionHost {
          * Only access on the async thread.
          */
         Queue<Operation> deferredOps = new LinkedList<Operation>();
+
+        /**
+         * Update requests the extension hasn't completed yet, by request ID. Only access on the
+         * async thread.
+         */
+        SparseArray<UpdateRequest> inFlightRequests = new SparseArray<UpdateRequest>();
     }
 }
@@ -19,10 +19,13 @@ package com.google.android.apps.dashclock;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.backup.BackupManager;
 import android.content.ComponentName;
 import android.content.Context;
@@ -40,6 +43,7 @@ import android.text.TextUtils;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,6 +61,14 @@ public class ExtensionManager {
 
     private static final String PREF_ACTIVE_EXTENSIONS = "active_extensions";
 
+    private static final String TIMELINE_KEY_SUFFIX = "#timeline";
+    private static final int MAX_TIMELINE_ENTRIES = 64;
+
+    /**
+     * How long before data expires to ask its extension for an update.
+     */
+    private static final long REFRESH_BEFORE_EXPIRY_MILLIS = 60 * 1000;
+
     private final Context mApplicationContext;
 
     private List<ExtensionWithData> mActiveExtensions = new ArrayList<ExtensionWithData>();
@@ -64,6 +76,26 @@ public class ExtensionManager {
             = new HashMap<ComponentName, ExtensionWithData>();
     private List<OnChangeListener> mOnChangeListeners = new ArrayList<OnChangeListener>();
 
+    /**
+     * Published timelines that haven't run out yet, by extension.
+     */
+    private Map<ComponentName, Timeline> mTimelines = new HashMap<ComponentName, Timeline>();
+    private int mTimelineTransitionCount = 0;
+
+    /**
+     * Extensions whose data has been handled by {@link #applyScheduledChanges()}, to avoid
+     * handling it more than once. Cleared when the extension's data changes.
+     */
+    private Set<ComponentName> mExpiredExtensions = new HashSet<ComponentName>();
+    private Set<ComponentName> mExpiryRefreshesRequested = new HashSet<ComponentName>();
+
+    /**
+     * Guards change notification holds; see {@link #holdChangeNotifications()}.
+     */
+    private final Object mNotifyLock = new Object();
+    private int mNotifyHoldCount = 0;
+    private boolean mNotifyPending = false;
+
     private SharedPreferences mDefaultPreferences;
     private SharedPreferences mValuesPreferences;
     private Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
@@ -176,6 +208,12 @@ public class ExtensionManager {
                 ExtensionWithData ci = new ExtensionWithData();
                 ci.componentName = cn;
                 ci.latestData = deserializeExtensionData(ci.componentName);
+                Timeline timeline = deserializeTimeline(ci.componentName);
+                if (timeline != null) {
+                    synchronized (this) {
+                        mTimelines.put(ci.componentName, timeline);
+                    }
+                }
                 newActiveExtensions.add(ci);
             }
         }
@@ -196,19 +234,232 @@ public class ExtensionManager {
     /**
      * Updates and caches the user-visible data for a given extension.
      */
-    public boolean updateExtensionData(ComponentName cn, ExtensionData data) {
+    public synchronized boolean updateExtensionData(ComponentName cn, ExtensionData data) {
         data.clean();
+        if (data.publishedAt() == 0) {
+            data.publishedAt(System.currentTimeMillis());
+        }
+
+        // Regular data replaces any timeline.
+        if (mTimelines.remove(cn) != null) {
+            destroyTimeline(cn);
+        }
 
         ExtensionWithData ci = mExtensionInfoMap.get(cn);
         if (ci != null && !ExtensionData.equals(ci.latestData, data)) {
             ci.latestData = data;
             serializeExtensionData(ci.componentName, data);
+            mExpiredExtensions.remove(cn);
+            mExpiryRefreshesRequested.remove(cn);
+            applyScheduledChanges(false);
             notifyOnChangeListeners();
             return true;
         }
         return false;
     }
 
+    /**
+     * Replaces the given extension's data with a timeline of data, each entry of which is shown
+     * starting at its given time. The entry that should currently be shown takes effect right
+     * away.
+     */
+    public synchronized void updateExtensionTimeline(ComponentName cn, long[] validFromTimes,
+            ExtensionData[] entries) {
+        if (!mExtensionInfoMap.containsKey(cn)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int count = Math.min(validFromTimes.length, MAX_TIMELINE_ENTRIES);
+        Timeline timeline = new Timeline(count);
+        for (int i = 0; i < count; i++) {
+            ExtensionData data = (entries[i] != null) ? entries[i] : new ExtensionData();
+            data.clean();
+            if (data.publishedAt() == 0) {
+                data.publishedAt(now);
+            }
+            timeline.validFromTimes[i] = validFromTimes[i];
+            timeline.entries[i] = data;
+        }
+
+        mTimelines.put(cn, timeline);
+        serializeTimeline(cn, timeline);
+        applyScheduledChanges(false);
+    }
+
+    /**
+     * Applies time-based changes to extension data: switches extensions with timelines to the
+     * entries that should currently be shown, and hides expired data. Also schedules an alarm
+     * for the next such change.
+     *
+     * @return The extensions whose data is about to expire, and which should be asked for an
+     * update.
+     */
+    public synchronized List<ComponentName> applyScheduledChanges() {
+        return applyScheduledChanges(true);
+    }
+
+    /**
+     * Returns whether or not the given extension's data will be refreshed ahead of its expiry,
+     * making blind periodic updates unnecessary.
+     */
+    public synchronized boolean isRefreshScheduled(ComponentName cn) {
+        ExtensionWithData ci = mExtensionInfoMap.get(cn);
+        return ci != null && ci.latestData.expiresAt() > 0
+                && !mExpiryRefreshesRequested.contains(cn)
+                && ci.latestData.expiresAt() - REFRESH_BEFORE_EXPIRY_MILLIS
+                        > System.currentTimeMillis();
+    }
+
+    /**
+     * @param collectRefreshes Whether or not the caller will ask extensions whose data is about
+     *                         to expire for an update. If not, an alarm is scheduled so that this
+     *                         happens later on.
+     */
+    private List<ComponentName> applyScheduledChanges(boolean collectRefreshes) {
+        long now = System.currentTimeMillis();
+        long nextChangeTime = Long.MAX_VALUE;
+        boolean changed = false;
+
+        Iterator<Map.Entry<ComponentName, Timeline>> it = mTimelines.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ComponentName, Timeline> entry = it.next();
+            ComponentName cn = entry.getKey();
+            Timeline timeline = entry.getValue();
+            ExtensionWithData ci = mExtensionInfoMap.get(cn);
+            if (ci == null) {
+                it.remove();
+                continue;
+            }
+
+            int current = -1;
+            for (int i = 0; i < timeline.validFromTimes.length; i++) {
+                if (timeline.validFromTimes[i] <= now) {
+                    current = i;
+                }
+            }
+
+            if (current >= 0 && !ExtensionData.equals(ci.latestData, timeline.entries[current])) {
+                ci.latestData = timeline.entries[current];
+                serializeExtensionData(cn, ci.latestData);
+                ++mTimelineTransitionCount;
+                changed = true;
+            }
+
+            if (current == timeline.validFromTimes.length - 1) {
+                // The last entry stays until the extension publishes something else.
+                it.remove();
+                destroyTimeline(cn);
+            } else {
+                nextChangeTime = Math.min(nextChangeTime, timeline.validFromTimes[current + 1]);
+            }
+        }
+
+        if (changed) {
+            LOGD(TAG, "Applied timeline transitions without waking extensions: "
+                    + mTimelineTransitionCount + " so far.");
+        }
+
+        List<ComponentName> refreshes = new ArrayList<ComponentName>();
+        for (ExtensionWithData ci : mActiveExtensions) {
+            long expiresAt = ci.latestData.expiresAt();
+            if (expiresAt <= 0) {
+                continue;
+            }
+
+            if (expiresAt > now) {
+                nextChangeTime = Math.min(nextChangeTime, expiresAt);
+            } else if (mExpiredExtensions.add(ci.componentName)) {
+                LOGD(TAG, "Hiding expired data for " + ci.componentName.flattenToShortString());
+                changed = true;
+            }
+
+            if (mExpiryRefreshesRequested.contains(ci.componentName)) {
+                continue;
+            }
+
+            long refreshAt = expiresAt - REFRESH_BEFORE_EXPIRY_MILLIS;
+            if (refreshAt > now) {
+                nextChangeTime = Math.min(nextChangeTime, refreshAt);
+            } else if (collectRefreshes) {
+                mExpiryRefreshesRequested.add(ci.componentName);
+                refreshes.add(ci.componentName);
+            } else {
+                // Let the alarm handler ask for the update.
+                nextChangeTime = now;
+            }
+        }
+
+        if (changed) {
+            notifyOnChangeListeners();
+        }
+
+        scheduleAlarm(nextChangeTime);
+        return refreshes;
+    }
+
+    private void scheduleAlarm(long time) {
+        AlarmManager am = (AlarmManager) mApplicationContext.getSystemService(
+                Context.ALARM_SERVICE);
+        PendingIntent pi = PendingIntent.getService(mApplicationContext, 0,
+                new Intent(mApplicationContext, DashClockService.class)
+                        .setAction(DashClockService.ACTION_APPLY_SCHEDULED_CHANGES),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (time == Long.MAX_VALUE) {
+            am.cancel(pi);
+        } else {
+            // Not a wakeup alarm; there's no need to re-render while the device is asleep.
+            am.set(AlarmManager.RTC, time, pi);
+        }
+    }
+
+    private Timeline deserializeTimeline(ComponentName componentName) {
+        String val = mValuesPreferences.getString(
+                componentName.flattenToString() + TIMELINE_KEY_SUFFIX, "");
+        if (TextUtils.isEmpty(val)) {
+            return null;
+        }
+
+        try {
+            JSONArray array = (JSONArray) new JSONTokener(val).nextValue();
+            Timeline timeline = new Timeline(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                timeline.validFromTimes[i] = item.getLong("validFrom");
+                timeline.entries[i] = new ExtensionData();
+                timeline.entries[i].deserialize(item.getJSONObject("data"));
+            }
+            return timeline;
+        } catch (JSONException e) {
+            LOGE(TAG, "Error loading extension timeline for " + componentName + ".", e);
+            return null;
+        }
+    }
+
+    private void serializeTimeline(ComponentName componentName, Timeline timeline) {
+        try {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < timeline.validFromTimes.length; i++) {
+                JSONObject item = new JSONObject();
+                item.put("validFrom", timeline.validFromTimes[i]);
+                item.put("data", timeline.entries[i].serialize());
+                array.put(item);
+            }
+            mValuesPreferences.edit()
+                    .putString(componentName.flattenToString() + TIMELINE_KEY_SUFFIX,
+                            array.toString())
+                    .commit();
+        } catch (JSONException e) {
+            LOGE(TAG, "Error storing extension timeline for " + componentName + ".", e);
+        }
+    }
+
+    private void destroyTimeline(ComponentName componentName) {
+        mValuesPreferences.edit()
+                .remove(componentName.flattenToString() + TIMELINE_KEY_SUFFIX)
+                .commit();
+    }
+
     private ExtensionData deserializeExtensionData(ComponentName componentName) {
         ExtensionData extensionData = new ExtensionData();
         String val = mValuesPreferences.getString(componentName.flattenToString(), "");
@@ -235,8 +486,13 @@ public class ExtensionManager {
     }
 
     private void destroyExtensionData(ComponentName componentName) {
+        // mTimelines is guarded by this instance's lock, like in updateExtensionTimeline().
+        synchronized (this) {
+            mTimelines.remove(componentName);
+        }
         mValuesPreferences.edit()
                 .remove(componentName.flattenToString())
+                .remove(componentName.flattenToString() + TIMELINE_KEY_SUFFIX)
                 .commit();
     }
 
@@ -298,7 +554,45 @@ public class ExtensionManager {
         mOnChangeListeners.remove(onChangeListener);
     }
 
+    /**
+     * Holds off notifying listeners of changes until a matching call to
+     * {@link #releaseChangeNotifications()}, at which point listeners are notified once if
+     * anything changed in the meantime. Used to batch several data updates into a single
+     * re-render.
+     */
+    public void holdChangeNotifications() {
+        synchronized (mNotifyLock) {
+            ++mNotifyHoldCount;
+        }
+    }
+
+    /**
+     * Releases a hold placed with {@link #holdChangeNotifications()}.
+     */
+    public void releaseChangeNotifications() {
+        synchronized (mNotifyLock) {
+            if (mNotifyHoldCount == 0 || --mNotifyHoldCount > 0 || !mNotifyPending) {
+                return;
+            }
+
+            mNotifyPending = false;
+        }
+
+        postChangeNotification();
+    }
+
     private void notifyOnChangeListeners() {
+        synchronized (mNotifyLock) {
+            if (mNotifyHoldCount > 0) {
+                mNotifyPending = true;
+                return;
+            }
+        }
+
+        postChangeNotification();
+    }
+
+    private void postChangeNotification() {
         mMainThreadHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -316,6 +610,24 @@ public class ExtensionManager {
     public static class ExtensionWithData {
         public ComponentName componentName;
         public ExtensionData latestData;
+
+        /**
+         * Returns whether or not the latest data should currently be shown, i.e. whether it's
+         * visible and hasn't expired.
+         */
+        public boolean isVisibleNow() {
+            return latestData.visible() && !latestData.isExpired(System.currentTimeMillis());
+        }
+    }
+
+    private static class Timeline {
+        long[] validFromTimes;
+        ExtensionData[] entries;
+
+        Timeline(int size) {
+            validFromTimes = new long[size];
+            entries = new ExtensionData[size];
+        }
     }
 
     public static class ExtensionListing {
@@ -24,28 +24,12 @@ import android.graphics.PorterDuff;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
 /**
  * Because every project needs a Utils class.
  */
 public class Utils {
-    private static final String USER_AGENT = "DashClock/0.0";
-
     public static final int EXTENSION_ICON_SIZE = 128;
 
-    // TODO: Let's use a *real* HTTP library, eh?
-    public static HttpURLConnection openUrlConnection(String url) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setUseCaches(false);
-        conn.setChunkedStreamingMode(0);
-        conn.setRequestProperty("User-Agent", USER_AGENT);
-        conn.connect();
-        return conn;
-    }
-
     public static Bitmap flattenExtensionIcon(Drawable baseIcon, int color) {
         if (baseIcon == null) {
             return null;
@@ -21,26 +21,55 @@ import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
 
 import java.net.URISyntaxException;
 
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
 import static com.google.android.apps.dashclock.LogUtils.LOGE;
 
 /**
- * A basic proxy activity for handling widget clicks.
+ * A basic proxy activity for handling widget clicks. Going through this activity is only needed
+ * for lock screen widgets, where the keyguard must be dismissed (signaled by this activity
+ * gaining window focus) before the real target is started. Home screen widgets launch their
+ * targets directly where possible; see {@link #getDirectIntent(Intent)} and
+ * {@link #getDirectTemplate()}.
  */
 public class WidgetClickProxyActivity extends Activity {
     private static final String TAG = LogUtils.makeLogTag(WidgetClickProxyActivity.class);
 
+    private static final int LAUNCH_FLAGS = Intent.FLAG_ACTIVITY_NEW_TASK
+            | Intent.FLAG_ACTIVITY_TASK_ON_HOME
+            | Intent.FLAG_ACTIVITY_CLEAR_TASK;
+
+    /**
+     * The {@link android.app.PendingIntent} flags to use with {@link #getDirectTemplate()}.
+     * Fill-in intents may only supply the action, data and categories, so the template can never
+     * be redirected to an arbitrary component. Click intents that need more than that go through
+     * this proxy instead; see {@link #canLaunchDirectly(Intent)}.
+     */
+    public static final int DIRECT_TEMPLATE_FILL_IN_FLAGS = Intent.FILL_IN_ACTION
+            | Intent.FILL_IN_DATA
+            | Intent.FILL_IN_CATEGORIES;
+
+    private long mCreateTime;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         if (hasFocus) {
+            LOGD(TAG, "Proxy launching target " + (SystemClock.elapsedRealtime() - mCreateTime)
+                    + "ms after creation.");
             try {
                 startActivity(
                         Intent.parseUri(getIntent().getData().toString(), Intent.URI_INTENT_SCHEME)
-                                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                                        | Intent.FLAG_ACTIVITY_TASK_ON_HOME
-                                        | Intent.FLAG_ACTIVITY_CLEAR_TASK
+                                .addFlags(LAUNCH_FLAGS
                                         | Intent.FLAG_ACTIVITY_FORWARD_RESULT));
             } catch (URISyntaxException e) {
                 LOGE(TAG, "Error parsing URI.", e);
@@ -68,4 +97,41 @@ public class WidgetClickProxyActivity extends Activity {
     public static Intent getFillIntent(Intent clickIntent) {
         return new Intent().setData(Uri.parse(clickIntent.toUri(Intent.URI_INTENT_SCHEME)));
     }
+
+    /**
+     * Returns an intent that launches the given click intent directly, with the same task flags
+     * this proxy would apply.
+     */
+    public static Intent getDirectIntent(Intent clickIntent) {
+        return new Intent(clickIntent).addFlags(LAUNCH_FLAGS);
+    }
+
+    /**
+     * Returns an empty collection template intent, meant to be used with
+     * {@link #DIRECT_TEMPLATE_FILL_IN_FLAGS} and fill-in intents from
+     * {@link #getDirectFillIntent(Intent)}.
+     */
+    public static Intent getDirectTemplate() {
+        return new Intent().addFlags(LAUNCH_FLAGS);
+    }
+
+    /**
+     * Returns whether the given click intent can be launched through {@link #getDirectTemplate()},
+     * i.e. whether it's fully described by the fields allowed by
+     * {@link #DIRECT_TEMPLATE_FILL_IN_FLAGS}. Intents targeting a component or package can't be,
+     * and must be launched through this proxy.
+     */
+    public static boolean canLaunchDirectly(Intent clickIntent) {
+        return clickIntent.getComponent() == null
+                && clickIntent.getPackage() == null
+                && clickIntent.getSelector() == null;
+    }
+
+    /**
+     * Returns the fill-in intent for {@link #getDirectTemplate()}. Only valid for click intents
+     * for which {@link #canLaunchDirectly(Intent)} returns true.
+     */
+    public static Intent getDirectFillIntent(Intent clickIntent) {
+        return new Intent(clickIntent);
+    }
 }
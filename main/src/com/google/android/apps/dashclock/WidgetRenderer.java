@@ -16,8 +16,8 @@
 
 package com.google.android.apps.dashclock;
 
-import com.google.android.apps.dashclock.configuration.AppChooserPreference;
 import com.google.android.apps.dashclock.configuration.AppearanceConfig;
+import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.configuration.ConfigurationActivity;
 
 import net.nurik.roman.dashclock.R;
@@ -28,7 +28,6 @@ import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
@@ -36,8 +35,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.View;
@@ -45,10 +45,16 @@ import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.LogUtils.LOGV;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
 
 /**
  * Helper class in charge of rendering DashClock widgets, along with {@link ViewFactoryService}.
@@ -61,6 +67,13 @@ public class WidgetRenderer {
             .setPackage("com.google.android.deskclock")
             .addCategory(Intent.CATEGORY_LAUNCHER);
 
+    /**
+     * Extra on the remote adapter intent indicating whether list items should launch their click
+     * intents directly (home screen) or through {@link WidgetClickProxyActivity} (lock screen).
+     */
+    private static final String EXTRA_LAUNCH_DIRECTLY
+            = "com.google.android.apps.dashclock.extra.LAUNCH_DIRECTLY";
+
     private static class CollapsedExtensionSlot {
         int targetId;
         int iconId;
@@ -88,213 +101,456 @@ public class WidgetRenderer {
                     R.id.collapsed_extension_3_text),
     };
 
+    private static final PendingIntentCache sPendingIntentCache = new PendingIntentCache();
+
     /**
      * Renders the DashClock UI to the given app widget IDs.
      */
     public static void renderWidgets(Context context, int[] appWidgetIds) {
-        final ExtensionManager extensionManager = ExtensionManager.getInstance(context);
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        final Resources res = context.getResources();
 
-        // Load some settings
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-        Intent clockIntent = AppChooserPreference.getIntentValue(
-                sp.getString(PREF_CLOCK_SHORTCUT, null), DEFAULT_CLOCK_INTENT);
+        // Everything that doesn't depend on the individual widget (slot contents, icons, click
+        // intents, appearance settings) is computed once here and shared by all widgets.
+        long startTime = SystemClock.elapsedRealtime();
+        RenderModel model = new RenderModel(context);
+        LOGV(TAG, "Render settings and model loaded in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms");
 
-        // Load data from extensions
-        List<ExtensionManager.ExtensionWithData> mExtensions
-                = extensionManager.getActiveExtensionsWithData();
-
-        // Determine if we're on a tablet or not (lock screen widgets can't be collapsed on
-        // tablets).
-        boolean isTablet = res.getConfiguration().smallestScreenWidthDp >= 600;
-
-        // Pull high-level user-defined appearance options.
-        int shadeColor = AppearanceConfig.getHomescreenBackgroundColor(context);
-        boolean aggressiveCentering = AppearanceConfig.isAggressiveCenteringEnabled(context);
+        int pendingIntentsCreated = sPendingIntentCache.getCreatedCount();
+        for (int appWidgetId : appWidgetIds) {
+            appWidgetManager.updateAppWidget(appWidgetId,
+                    renderWidget(context, appWidgetManager, model, appWidgetId));
+        }
+        LOGV(TAG, "Created " + (sPendingIntentCache.getCreatedCount() - pendingIntentsCreated)
+                + " pending intent(s) while rendering " + appWidgetIds.length + " widget(s)");
+    }
 
-        int activeExtensions = mExtensions.size();
+    /**
+     * Builds the {@link RemoteViews} for a single widget out of the shared {@link RenderModel},
+     * applying only the layout and gravity differences that depend on the widget's host and
+     * size.
+     */
+    private static RemoteViews renderWidget(Context context, AppWidgetManager appWidgetManager,
+            RenderModel model, int appWidgetId) {
+        boolean isLockscreen = false;
+        int widgetMinHeight = Integer.MAX_VALUE;
+        Bundle widgetOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
+        if (widgetOptions != null) {
+            widgetMinHeight = widgetOptions
+                    .getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
+            isLockscreen = AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD ==
+                    widgetOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY);
+        }
 
-        int visibleExtensions = 0;
-        for (ExtensionManager.ExtensionWithData ci : mExtensions) {
-            if (!ci.latestData.visible()) {
-                continue;
+        boolean isExpanded = (widgetMinHeight >= model.minExpandedHeightDp);
+
+        RemoteViews rv = new RemoteViews(model.packageName,
+                isExpanded
+                        ? (model.aggressiveCentering
+                                ? R.layout.widget_main_expanded_forced_center
+                                : R.layout.widget_main_expanded)
+                        : (model.aggressiveCentering
+                                ? R.layout.widget_main_collapsed_forced_center
+                                : R.layout.widget_main_collapsed));
+        rv.setInt(R.id.shade, "setBackgroundColor", model.shadeColor);
+        rv.setViewVisibility(R.id.shade, (isLockscreen || model.shadeColor == 0)
+                ? View.GONE : View.VISIBLE);
+
+        // Configure clock face
+        rv.removeAllViews(R.id.time_container);
+        rv.addView(R.id.time_container, new RemoteViews(model.packageName,
+                model.timeLayoutId));
+        rv.removeAllViews(R.id.date_container);
+        rv.addView(R.id.date_container, new RemoteViews(model.packageName,
+                model.dateLayoutId));
+
+        // Align the clock
+        if (model.aggressiveCentering) {
+            // Forced/aggressive centering rules
+            rv.setViewVisibility(R.id.settings_button_center_displacement, View.VISIBLE);
+            rv.setViewPadding(R.id.clock_row, 0, 0, 0, 0);
+            rv.setInt(R.id.clock_target, "setGravity", Gravity.CENTER_HORIZONTAL);
+
+        } else {
+            // Basic centering rules
+            boolean forceCentered = model.isTablet && model.isPortrait && isLockscreen;
+
+            int clockInnerGravity = Gravity.CENTER_HORIZONTAL;
+            if (model.activeExtensions > 0 && !forceCentered) {
+                // Extensions are visible, don't center clock
+                if (isLockscreen) {
+                    // lock screen
+                    clockInnerGravity = model.isTablet ? Gravity.LEFT : Gravity.RIGHT;
+                } else {
+                    // home screen
+                    clockInnerGravity = (isExpanded && model.isTablet)
+                            ? Gravity.LEFT : Gravity.RIGHT;
+                }
             }
-            ++visibleExtensions;
+            rv.setInt(R.id.clock_target, "setGravity", clockInnerGravity);
+
+            boolean clockCentered = model.activeExtensions == 0 || forceCentered; // left otherwise
+            rv.setInt(R.id.clock_row, "setGravity",
+                    clockCentered ? Gravity.CENTER_HORIZONTAL : Gravity.LEFT);
+            rv.setViewVisibility(R.id.settings_button_center_displacement,
+                    clockCentered ? View.INVISIBLE : View.GONE);
+            rv.setViewPadding(R.id.clock_row, clockCentered ? 0 : model.clockLeftMargin, 0, 0, 0);
         }
 
-        for (int appWidgetId : appWidgetIds) {
-            boolean isLockscreen = false;
-            int widgetMinHeight = Integer.MAX_VALUE;
-            Bundle widgetOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
-            if (widgetOptions != null) {
-                widgetMinHeight = widgetOptions
-                        .getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
-                isLockscreen = AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD ==
-                        widgetOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY);
-            }
+        rv.setViewVisibility(R.id.widget_divider,
+                (model.visibleExtensions > 0) ? View.VISIBLE : View.GONE);
+        rv.setViewVisibility(R.id.collapsed_extensions_container,
+                (model.activeExtensions > 0 && !isExpanded) ? View.VISIBLE : View.GONE);
 
-            boolean isExpanded = (widgetMinHeight
-                    >= res.getDimensionPixelSize(R.dimen.min_expanded_height) /
-                    res.getDisplayMetrics().density);
-
-            RemoteViews rv = new RemoteViews(context.getPackageName(),
-                    isExpanded
-                            ? (aggressiveCentering
-                                    ? R.layout.widget_main_expanded_forced_center
-                                    : R.layout.widget_main_expanded)
-                            : (aggressiveCentering
-                                    ? R.layout.widget_main_collapsed_forced_center
-                                    : R.layout.widget_main_collapsed));
-            rv.setInt(R.id.shade, "setBackgroundColor", shadeColor);
-            rv.setViewVisibility(R.id.shade, (isLockscreen || shadeColor == 0)
-                    ? View.GONE : View.VISIBLE);
-
-            // Configure clock face
-            rv.removeAllViews(R.id.time_container);
-            rv.addView(R.id.time_container, new RemoteViews(context.getPackageName(),
-                    AppearanceConfig.getCurrentTimeLayout(context)));
-            rv.removeAllViews(R.id.date_container);
-            rv.addView(R.id.date_container, new RemoteViews(context.getPackageName(),
-                    AppearanceConfig.getCurrentDateLayout(context)));
-
-            // Align the clock
-            boolean isPortrait = res.getConfiguration().orientation
-                    == Configuration.ORIENTATION_PORTRAIT;
+        // Clock
+        rv.setOnClickPendingIntent(R.id.clock_target, model.getClockPendingIntent());
 
-            if (aggressiveCentering) {
-                // Forced/aggressive centering rules
-                rv.setViewVisibility(R.id.settings_button_center_displacement, View.VISIBLE);
-                rv.setViewPadding(R.id.clock_row, 0, 0, 0, 0);
-                rv.setInt(R.id.clock_target, "setGravity", Gravity.CENTER_HORIZONTAL);
+        for (CollapsedExtensionSlot slot : COLLAPSED_EXTENSION_SLOTS) {
+            rv.setViewVisibility(slot.targetId, View.GONE);
+        }
 
-            } else {
-                // Basic centering rules
-                boolean forceCentered = isTablet && isPortrait && isLockscreen;
-
-                int clockInnerGravity = Gravity.CENTER_HORIZONTAL;
-                if (activeExtensions > 0 && !forceCentered) {
-                    // Extensions are visible, don't center clock
-                    if (isLockscreen) {
-                        // lock screen
-                        clockInnerGravity = isTablet ? Gravity.LEFT : Gravity.RIGHT;
-                    } else {
-                        // home screen
-                        clockInnerGravity = (isExpanded && isTablet) ? Gravity.LEFT : Gravity.RIGHT;
-                    }
+        if (isExpanded) {
+            boolean listLaunchesDirectly = !isLockscreen && model.canLaunchListDirectly();
+            Intent remoteAdapterIntent = new Intent(context, ViewFactoryService.class);
+            remoteAdapterIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            remoteAdapterIntent.putExtra(EXTRA_LAUNCH_DIRECTLY, listLaunchesDirectly);
+            // TODO: is this setData call really necessary?
+            remoteAdapterIntent.setData(
+                    Uri.parse(remoteAdapterIntent.toUri(Intent.URI_INTENT_SCHEME)));
+            rv.setRemoteAdapter(R.id.expanded_extensions, remoteAdapterIntent);
+            rv.setPendingIntentTemplate(R.id.expanded_extensions,
+                    model.getListTemplatePendingIntent(listLaunchesDirectly));
+
+            // Settings button
+            rv.setOnClickPendingIntent(R.id.settings_button, model.getSettingsPendingIntent());
+
+        } else {
+            // Update status slots
+            List<RenderedSlot> slots = model.getCollapsedSlots();
+            for (int slotIndex = 0; slotIndex < slots.size(); slotIndex++) {
+                RenderedSlot renderedSlot = slots.get(slotIndex);
+                CollapsedExtensionSlot slot = COLLAPSED_EXTENSION_SLOTS[slotIndex];
+                rv.setViewVisibility(slot.targetId, View.VISIBLE);
+
+                if (renderedSlot.twoLine) {
+                    rv.setBoolean(slot.textId, "setSingleLine", false);
+                    rv.setInt(slot.textId, "setMaxLines", 2);
+                    rv.setTextViewTextSize(slot.textId, TypedValue.COMPLEX_UNIT_PX,
+                            model.collapsedTextSizeTwoLine);
+                } else {
+                    rv.setBoolean(slot.textId, "setSingleLine", true);
+                    rv.setInt(slot.textId, "setMaxLines", 1);
+                    rv.setTextViewTextSize(slot.textId, TypedValue.COMPLEX_UNIT_PX,
+                            model.collapsedTextSizeSingleLine);
                 }
-                rv.setInt(R.id.clock_target, "setGravity", clockInnerGravity);
-
-                boolean clockCentered = activeExtensions == 0 || forceCentered; // left otherwise
-                rv.setInt(R.id.clock_row, "setGravity",
-                        clockCentered ? Gravity.CENTER_HORIZONTAL : Gravity.LEFT);
-                rv.setViewVisibility(R.id.settings_button_center_displacement,
-                        clockCentered ? View.INVISIBLE : View.GONE);
+                rv.setTextViewText(slot.textId, renderedSlot.status);
+                rv.setImageViewBitmap(slot.iconId, renderedSlot.icon);
 
-                int clockLeftMargin = res.getDimensionPixelSize(R.dimen.clock_left_margin);
-                rv.setViewPadding(R.id.clock_row, clockCentered ? 0 : clockLeftMargin, 0, 0, 0);
+                PendingIntent clickPendingIntent = model.getCollapsedSlotPendingIntent(
+                        slotIndex, !isLockscreen);
+                if (clickPendingIntent != null) {
+                    rv.setOnClickPendingIntent(slot.targetId, clickPendingIntent);
+                }
             }
 
-            rv.setViewVisibility(R.id.widget_divider,
-                    (visibleExtensions > 0) ? View.VISIBLE : View.GONE);
-            rv.setViewVisibility(R.id.collapsed_extensions_container,
-                    (activeExtensions > 0 && !isExpanded) ? View.VISIBLE : View.GONE);
+            rv.setViewVisibility(R.id.collapsed_extension_ellipsis,
+                    model.ellipsisVisible ? View.VISIBLE : View.GONE);
+        }
 
-            // Clock
-            rv.setOnClickPendingIntent(R.id.clock_target, PendingIntent.getActivity(
-                    context,
-                    0,
-                    clockIntent,
-                    PendingIntent.FLAG_UPDATE_CURRENT));
+        return rv;
+    }
 
-            for (CollapsedExtensionSlot slot : COLLAPSED_EXTENSION_SLOTS) {
-                rv.setViewVisibility(slot.targetId, View.GONE);
+    /**
+     * A snapshot, taken once per render pass, of everything needed to render DashClock widgets
+     * that doesn't depend on an individual widget. Pieces only needed by one of the two widget
+     * modes (collapsed slots or the expanded list's intents) are built lazily, at most once per
+     * model. These lazily set fields aren't synchronized, so a model must only be built and used
+     * on a single thread.
+     */
+    private static class RenderModel {
+        final Context context;
+        final String packageName;
+
+        final boolean isTablet;
+        final boolean isPortrait;
+        final float minExpandedHeightDp;
+        final int clockLeftMargin;
+
+        final int shadeColor;
+        final boolean aggressiveCentering;
+        final int timeLayoutId;
+        final int dateLayoutId;
+        final Intent clockIntent;
+
+        final List<ExtensionManager.ExtensionWithData> extensions;
+        final int activeExtensions;
+        final int visibleExtensions;
+
+        int collapsedTextSizeSingleLine;
+        int collapsedTextSizeTwoLine;
+        boolean ellipsisVisible;
+
+        private List<RenderedSlot> mCollapsedSlots;
+        private PendingIntent mClockPendingIntent;
+        private PendingIntent mSettingsPendingIntent;
+        private Boolean mCanLaunchListDirectly;
+
+        RenderModel(Context context) {
+            this.context = context;
+            this.packageName = context.getPackageName();
+            Resources res = context.getResources();
+
+            // Determine if we're on a tablet or not (lock screen widgets can't be collapsed on
+            // tablets).
+            isTablet = res.getConfiguration().smallestScreenWidthDp >= 600;
+            isPortrait = res.getConfiguration().orientation
+                    == Configuration.ORIENTATION_PORTRAIT;
+            minExpandedHeightDp = res.getDimensionPixelSize(R.dimen.min_expanded_height)
+                    / res.getDisplayMetrics().density;
+            clockLeftMargin = res.getDimensionPixelSize(R.dimen.clock_left_margin);
+
+            // Pull high-level user-defined appearance options. These are cached and only
+            // recomputed when the underlying preferences change.
+            AppearanceConfig.RenderSettings settings = AppearanceConfig.getRenderSettings(context);
+            shadeColor = settings.homescreenBackgroundColor;
+            aggressiveCentering = settings.aggressiveCenteringEnabled;
+            timeLayoutId = settings.timeLayoutId;
+            dateLayoutId = settings.dateLayoutId;
+            clockIntent = settings.clockIntent;
+
+            // Load data from extensions
+            extensions = new ArrayList<ExtensionManager.ExtensionWithData>(
+                    ExtensionManager.getInstance(context).getActiveExtensionsWithData());
+            activeExtensions = extensions.size();
+
+            int visible = 0;
+            for (ExtensionManager.ExtensionWithData ci : extensions) {
+                if (ci.isVisibleNow()) {
+                    ++visible;
+                }
             }
+            visibleExtensions = visible;
+        }
 
-            int slotIndex = 0;
-
-            if (isExpanded) {
-                Intent remoteAdapterIntent = new Intent(context, ViewFactoryService.class);
-                remoteAdapterIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-                // TODO: is this setData call really necessary?
-                remoteAdapterIntent.setData(
-                        Uri.parse(remoteAdapterIntent.toUri(Intent.URI_INTENT_SCHEME)));
-                rv.setRemoteAdapter(R.id.expanded_extensions, remoteAdapterIntent);
-
-                final Intent onClickIntent = WidgetClickProxyActivity.getTemplate(context);
-                final PendingIntent onClickPendingIntent = PendingIntent.getActivity(context, 0,
-                        onClickIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-                rv.setPendingIntentTemplate(R.id.expanded_extensions, onClickPendingIntent);
+        PendingIntent getClockPendingIntent() {
+            if (mClockPendingIntent == null) {
+                mClockPendingIntent = sPendingIntentCache.get(context,
+                        PendingIntentCache.KEY_CLOCK, clockIntent,
+                        PendingIntentCache.LAUNCH_AS_IS, 0);
+            }
+            return mClockPendingIntent;
+        }
 
-                // Settings button
+        PendingIntent getSettingsPendingIntent() {
+            if (mSettingsPendingIntent == null) {
                 Intent settingsIntent = new Intent(context, ConfigurationActivity.class)
                         .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                                 | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
-                rv.setOnClickPendingIntent(R.id.settings_button,
-                        PendingIntent.getActivity(
-                                context, 0, settingsIntent, PendingIntent.FLAG_UPDATE_CURRENT));
-
-            } else {
-                // Update status slots
-                boolean ellipsisVisible = false;
-                int extensionCollapsedTextSizeSingleLine = res
-                        .getDimensionPixelSize(R.dimen.extension_collapsed_text_size_single_line);
-                int extensionCollapsedTextSizeTwoLine = res
-                        .getDimensionPixelSize(R.dimen.extension_collapsed_text_size_two_line);
-                for (ExtensionManager.ExtensionWithData ci : mExtensions) {
-                    if (!ci.latestData.visible()) {
-                        continue;
-                    }
+                mSettingsPendingIntent = sPendingIntentCache.get(context,
+                        PendingIntentCache.KEY_SETTINGS, settingsIntent,
+                        PendingIntentCache.LAUNCH_AS_IS, 0);
+            }
+            return mSettingsPendingIntent;
+        }
 
-                    if (slotIndex >= COLLAPSED_EXTENSION_SLOTS.length) {
-                        ellipsisVisible = true;
+        /**
+         * Returns whether every visible extension's click intent can be launched through the
+         * direct list template. If any of them can't, the whole list goes through
+         * {@link WidgetClickProxyActivity}, since a list only has a single template.
+         */
+        boolean canLaunchListDirectly() {
+            if (mCanLaunchListDirectly == null) {
+                boolean canLaunchDirectly = true;
+                for (ExtensionManager.ExtensionWithData ci : extensions) {
+                    Intent clickIntent = ci.isVisibleNow() ? ci.latestData.clickIntent() : null;
+                    if (clickIntent != null
+                            && !WidgetClickProxyActivity.canLaunchDirectly(clickIntent)) {
+                        canLaunchDirectly = false;
                         break;
                     }
+                }
+                mCanLaunchListDirectly = canLaunchDirectly;
+            }
+            return mCanLaunchListDirectly;
+        }
 
-                    rv.setViewVisibility(COLLAPSED_EXTENSION_SLOTS[slotIndex].targetId,
-                            View.VISIBLE);
+        /**
+         * Returns the click template for the expanded extension list. Templates that launch
+         * directly only accept the action, data and categories of the click intent as a fill-in
+         * intent; see {@link #canLaunchListDirectly()}.
+         */
+        PendingIntent getListTemplatePendingIntent(boolean launchDirectly) {
+            return launchDirectly
+                    ? sPendingIntentCache.get(context,
+                            PendingIntentCache.KEY_DIRECT_LIST_TEMPLATE,
+                            WidgetClickProxyActivity.getDirectTemplate(),
+                            PendingIntentCache.LAUNCH_AS_IS,
+                            WidgetClickProxyActivity.DIRECT_TEMPLATE_FILL_IN_FLAGS)
+                    : sPendingIntentCache.get(context,
+                            PendingIntentCache.KEY_LIST_TEMPLATE,
+                            WidgetClickProxyActivity.getTemplate(context),
+                            PendingIntentCache.LAUNCH_AS_IS, 0);
+        }
 
-                    String status = ci.latestData.status();
-                    if (TextUtils.isEmpty(status)) {
-                        status = "";
-                    }
+        /**
+         * Returns the click intent for the given collapsed slot, either launching the
+         * extension's click intent directly or going through {@link WidgetClickProxyActivity}.
+         */
+        PendingIntent getCollapsedSlotPendingIntent(int slotIndex, boolean launchDirectly) {
+            Intent clickIntent = getCollapsedSlots().get(slotIndex).clickIntent;
+            if (clickIntent == null) {
+                return null;
+            }
 
-                    int extensionTextId = COLLAPSED_EXTENSION_SLOTS[slotIndex].textId;
-                    if (status.indexOf("\n") > 0) {
-                        rv.setBoolean(extensionTextId, "setSingleLine", false);
-                        rv.setInt(extensionTextId, "setMaxLines", 2);
-                        rv.setTextViewTextSize(extensionTextId, TypedValue.COMPLEX_UNIT_PX,
-                                extensionCollapsedTextSizeTwoLine);
-                    } else {
-                        rv.setBoolean(extensionTextId, "setSingleLine", true);
-                        rv.setInt(extensionTextId, "setMaxLines", 1);
-                        rv.setTextViewTextSize(extensionTextId, TypedValue.COMPLEX_UNIT_PX,
-                                extensionCollapsedTextSizeSingleLine);
-                    }
-                    rv.setTextViewText(extensionTextId, status.toUpperCase(Locale.getDefault()));
-                    rv.setImageViewBitmap(COLLAPSED_EXTENSION_SLOTS[slotIndex].iconId,
-                            loadExtensionIcon(context, ci.componentName, ci.latestData.icon()));
-
-                    Intent clickIntent = ci.latestData.clickIntent();
-                    if (clickIntent != null) {
-                        rv.setOnClickPendingIntent(COLLAPSED_EXTENSION_SLOTS[slotIndex].targetId,
-                                PendingIntent.getActivity(context,
-                                        slotIndex,
-                                        WidgetClickProxyActivity.wrap(context, clickIntent),
-                                        PendingIntent.FLAG_UPDATE_CURRENT));
-                    }
+            return launchDirectly
+                    ? sPendingIntentCache.get(context,
+                            PendingIntentCache.KEY_DIRECT_COLLAPSED_SLOT_BASE + slotIndex,
+                            clickIntent, PendingIntentCache.LAUNCH_DIRECT, 0)
+                    : sPendingIntentCache.get(context,
+                            PendingIntentCache.KEY_COLLAPSED_SLOT_BASE + slotIndex,
+                            clickIntent, PendingIntentCache.LAUNCH_VIA_PROXY, 0);
+        }
+
+        List<RenderedSlot> getCollapsedSlots() {
+            if (mCollapsedSlots != null) {
+                return mCollapsedSlots;
+            }
+
+            Resources res = context.getResources();
+            collapsedTextSizeSingleLine = res
+                    .getDimensionPixelSize(R.dimen.extension_collapsed_text_size_single_line);
+            collapsedTextSizeTwoLine = res
+                    .getDimensionPixelSize(R.dimen.extension_collapsed_text_size_two_line);
+
+            List<RenderedSlot> slots = new ArrayList<RenderedSlot>();
+            for (ExtensionManager.ExtensionWithData ci : extensions) {
+                if (!ci.isVisibleNow()) {
+                    continue;
+                }
+
+                if (slots.size() >= COLLAPSED_EXTENSION_SLOTS.length) {
+                    ellipsisVisible = true;
+                    break;
+                }
 
-                    ++slotIndex;
+                RenderedSlot slot = new RenderedSlot();
+                String status = ci.latestData.status();
+                if (TextUtils.isEmpty(status)) {
+                    status = "";
                 }
 
-                rv.setViewVisibility(R.id.collapsed_extension_ellipsis,
-                        ellipsisVisible ? View.VISIBLE : View.GONE);
+                slot.twoLine = status.indexOf("\n") > 0;
+                slot.status = status.toUpperCase(Locale.getDefault());
+                slot.icon = loadExtensionIcon(context, ci.componentName, ci.latestData.icon());
+
+                slot.clickIntent = ci.latestData.clickIntent();
+                slots.add(slot);
             }
 
-            appWidgetManager.updateAppWidget(appWidgetId, rv);
+            mCollapsedSlots = slots;
+            return mCollapsedSlots;
         }
     }
 
+    /**
+     * A cache of {@link PendingIntent}s built for widget click targets, reused across renders and
+     * widgets. Each target (the clock, the settings button, the list template or a collapsed slot)
+     * has a single entry, which is only rebuilt when the intent for that target changes.
+     */
+    private static class PendingIntentCache {
+        static final int KEY_CLOCK = 0;
+        static final int KEY_SETTINGS = 1;
+        static final int KEY_LIST_TEMPLATE = 2;
+        static final int KEY_DIRECT_LIST_TEMPLATE = 3;
+        static final int KEY_COLLAPSED_SLOT_BASE = 4;
+        static final int KEY_DIRECT_COLLAPSED_SLOT_BASE
+                = KEY_COLLAPSED_SLOT_BASE + COLLAPSED_EXTENSION_SLOTS.length;
+
+        /**
+         * Launch the intent exactly as given.
+         */
+        static final int LAUNCH_AS_IS = 0;
+
+        /**
+         * Launch the intent through {@link WidgetClickProxyActivity}, which is needed to dismiss
+         * the keyguard before starting the target.
+         */
+        static final int LAUNCH_VIA_PROXY = 1;
+
+        /**
+         * Launch the intent directly, as {@link WidgetClickProxyActivity} would.
+         */
+        static final int LAUNCH_DIRECT = 2;
+
+        private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+        private int mCreatedCount = 0;
+
+        /**
+         * Returns a {@link PendingIntent} that starts the given activity intent, reusing the one
+         * previously built for the given target if the intent hasn't changed since.
+         *
+         * @param key        One of the {@code KEY_*} constants. Also used as the request code, so
+         *                   that each target gets its own {@link PendingIntent} even when the
+         *                   launched intents only differ in their extras.
+         * @param launchMode One of {@link #LAUNCH_AS_IS}, {@link #LAUNCH_VIA_PROXY} or
+         *                   {@link #LAUNCH_DIRECT}.
+         * @param extraFlags Additional {@link PendingIntent} flags, such as the fill-in flags
+         *                   for list templates.
+         */
+        synchronized PendingIntent get(Context context, int key, Intent intent, int launchMode,
+                int extraFlags) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.source == intent) {
+                return entry.pendingIntent;
+            }
+
+            String fingerprint = intent.toUri(Intent.URI_INTENT_SCHEME);
+            if (entry != null && fingerprint.equals(entry.fingerprint)) {
+                entry.source = intent;
+                return entry.pendingIntent;
+            }
+
+            entry = new Entry();
+            entry.source = intent;
+            entry.fingerprint = fingerprint;
+            Intent launchIntent = intent;
+            if (launchMode == LAUNCH_VIA_PROXY) {
+                launchIntent = WidgetClickProxyActivity.wrap(context, intent);
+            } else if (launchMode == LAUNCH_DIRECT) {
+                launchIntent = WidgetClickProxyActivity.getDirectIntent(intent);
+            }
+
+            entry.pendingIntent = PendingIntent.getActivity(context, key, launchIntent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | extraFlags);
+            mEntries.put(key, entry);
+            ++mCreatedCount;
+            return entry.pendingIntent;
+        }
+
+        /**
+         * Returns the number of {@link PendingIntent}s built so far.
+         */
+        synchronized int getCreatedCount() {
+            return mCreatedCount;
+        }
+
+        private static class Entry {
+            Intent source;
+            String fingerprint;
+            PendingIntent pendingIntent;
+        }
+    }
+
+    /**
+     * Precomputed contents of a single collapsed extension slot.
+     */
+    private static class RenderedSlot {
+        String status;
+        boolean twoLine;
+        Bitmap icon;
+        Intent clickIntent;
+    }
+
     /**
      * This is the service that provides the factory to be bound to the collection. Basically the
      * {@link android.widget.Adapter} for expanded DashClock extensions.
@@ -307,42 +563,111 @@ public class WidgetRenderer {
 
         @Override
         public RemoteViewsFactory onGetViewFactory(Intent intent) {
-            return new WidgetRemoveViewsFactory(this);
+            return new WidgetRemoveViewsFactory(this,
+                    intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                            AppWidgetManager.INVALID_APPWIDGET_ID),
+                    intent.getBooleanExtra(EXTRA_LAUNCH_DIRECTLY, false));
         }
     }
 
     /**
      * This is the factory that will provide data to the collection widget. Behaves pretty much like
      * an {@link android.widget.Adapter}.
+     *
+     * <p>
+     * The factory keeps a snapshot of the visible extensions and only notifies its widget when
+     * that snapshot actually changes. Rendered rows are cached per extension and reused for as
+     * long as the extension's data is unchanged.
      */
     private static class WidgetRemoveViewsFactory implements RemoteViewsService.RemoteViewsFactory,
             ExtensionManager.OnChangeListener {
         private Context mContext;
+        private int mAppWidgetId;
+        private boolean mLaunchDirectly;
         private ExtensionManager mExtensionManager;
+
+        /**
+         * Guards {@link #mVisibleExtensions} and {@link #mRowCache}, which are read from binder
+         * threads and updated from the main thread.
+         */
+        private final Object mLock = new Object();
         private List<ExtensionManager.ExtensionWithData> mVisibleExtensions
                 = new ArrayList<ExtensionManager.ExtensionWithData>();
+        private Map<ComponentName, CachedRow> mRowCache = new HashMap<ComponentName, CachedRow>();
 
-        public WidgetRemoveViewsFactory(Context context) {
+        public WidgetRemoveViewsFactory(Context context, int appWidgetId,
+                boolean launchDirectly) {
             mContext = context;
+            mAppWidgetId = appWidgetId;
+            mLaunchDirectly = launchDirectly;
             mExtensionManager = ExtensionManager.getInstance(context);
             mExtensionManager.addOnChangeListener(this);
-            onExtensionsChanged();
+            synchronized (mLock) {
+                mVisibleExtensions = snapshotVisibleExtensions();
+            }
         }
 
-        @Override
-        public void onExtensionsChanged() {
-            mVisibleExtensions.clear();
+        /**
+         * Returns a copy of the currently visible extensions and their data. Copies are needed
+         * because {@link ExtensionManager} updates {@link ExtensionManager.ExtensionWithData}
+         * instances in place.
+         */
+        private List<ExtensionManager.ExtensionWithData> snapshotVisibleExtensions() {
+            List<ExtensionManager.ExtensionWithData> visibleExtensions
+                    = new ArrayList<ExtensionManager.ExtensionWithData>();
             for (ExtensionManager.ExtensionWithData ci : mExtensionManager
                     .getActiveExtensionsWithData()) {
-                if (ci.latestData.visible()) {
-                    mVisibleExtensions.add(ci);
+                if (ci.isVisibleNow()) {
+                    ExtensionManager.ExtensionWithData copy
+                            = new ExtensionManager.ExtensionWithData();
+                    copy.componentName = ci.componentName;
+                    copy.latestData = ci.latestData;
+                    visibleExtensions.add(copy);
                 }
             }
+            return visibleExtensions;
+        }
+
+        @Override
+        public void onExtensionsChanged() {
+            List<ExtensionManager.ExtensionWithData> newVisibleExtensions
+                    = snapshotVisibleExtensions();
+
+            boolean changed;
+            synchronized (mLock) {
+                changed = !snapshotsEqual(mVisibleExtensions, newVisibleExtensions);
+            }
+
+            if (!changed) {
+                return;
+            }
 
             AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
-            int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
-                    new ComponentName(mContext, WidgetProvider.class));
-            appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetIds, R.id.expanded_extensions);
+            if (mAppWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                appWidgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId,
+                        R.id.expanded_extensions);
+            } else {
+                int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
+                        new ComponentName(mContext, WidgetProvider.class));
+                appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetIds,
+                        R.id.expanded_extensions);
+            }
+        }
+
+        private static boolean snapshotsEqual(List<ExtensionManager.ExtensionWithData> x,
+                List<ExtensionManager.ExtensionWithData> y) {
+            if (x.size() != y.size()) {
+                return false;
+            }
+
+            for (int i = 0; i < x.size(); i++) {
+                if (!x.get(i).componentName.equals(y.get(i).componentName)
+                        || !ExtensionData.equals(x.get(i).latestData, y.get(i).latestData)) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         public void onCreate() {
@@ -355,6 +680,18 @@ public class WidgetRenderer {
         }
 
         public void onDataSetChanged() {
+            List<ExtensionManager.ExtensionWithData> visibleExtensions
+                    = snapshotVisibleExtensions();
+            synchronized (mLock) {
+                mVisibleExtensions = visibleExtensions;
+
+                // Drop cached rows for extensions that are no longer visible.
+                Set<ComponentName> visibleNames = new HashSet<ComponentName>();
+                for (ExtensionManager.ExtensionWithData ci : visibleExtensions) {
+                    visibleNames.add(ci.componentName);
+                }
+                mRowCache.keySet().retainAll(visibleNames);
+            }
         }
 
         public int getViewTypeCount() {
@@ -362,8 +699,12 @@ public class WidgetRenderer {
         }
 
         public long getItemId(int position) {
-            return mExtensionManager.getActiveExtensionsWithData().get(position).componentName
-                    .hashCode();
+            synchronized (mLock) {
+                if (position >= mVisibleExtensions.size()) {
+                    return position;
+                }
+                return mVisibleExtensions.get(position).componentName.hashCode();
+            }
         }
 
         public boolean hasStableIds() {
@@ -371,19 +712,27 @@ public class WidgetRenderer {
         }
 
         public int getCount() {
-            return mVisibleExtensions.size();
+            synchronized (mLock) {
+                return mVisibleExtensions.size();
+            }
         }
 
         public RemoteViews getViewAt(int position) {
-            if (position >= getCount()) {
-                // TODO: trap this better
-                return null;
-            }
+            ExtensionManager.ExtensionWithData ci;
+            synchronized (mLock) {
+                if (position >= mVisibleExtensions.size()) {
+                    // TODO: trap this better
+                    return null;
+                }
 
-            RemoteViews rv;
+                ci = mVisibleExtensions.get(position);
+                CachedRow cachedRow = mRowCache.get(ci.componentName);
+                if (cachedRow != null && ExtensionData.equals(cachedRow.data, ci.latestData)) {
+                    return cachedRow.views;
+                }
+            }
 
-            ExtensionManager.ExtensionWithData ci = mVisibleExtensions.get(position);
-            rv = new RemoteViews(mContext.getPackageName(),
+            RemoteViews rv = new RemoteViews(mContext.getPackageName(),
                     R.layout.widget_list_item_expanded_extension);
 
             String expandedTitle = ci.latestData.expandedTitle();
@@ -400,8 +749,25 @@ public class WidgetRenderer {
 
             Intent clickIntent = ci.latestData.clickIntent();
             if (clickIntent != null) {
-                rv.setOnClickFillInIntent(R.id.list_item,
-                        WidgetClickProxyActivity.getFillIntent(clickIntent));
+                if (!mLaunchDirectly) {
+                    rv.setOnClickFillInIntent(R.id.list_item,
+                            WidgetClickProxyActivity.getFillIntent(clickIntent));
+                } else if (WidgetClickProxyActivity.canLaunchDirectly(clickIntent)) {
+                    rv.setOnClickFillInIntent(R.id.list_item,
+                            WidgetClickProxyActivity.getDirectFillIntent(clickIntent));
+                } else {
+                    // The widget is re-rendered with the proxy template right after this change;
+                    // until then, don't let the direct template launch the wrong target.
+                    LOGW(TAG, "Click intent for " + ci.componentName
+                            + " can't be launched directly.");
+                }
+            }
+
+            synchronized (mLock) {
+                CachedRow cachedRow = new CachedRow();
+                cachedRow.data = ci.latestData;
+                cachedRow.views = rv;
+                mRowCache.put(ci.componentName, cachedRow);
             }
 
             return rv;
@@ -411,6 +777,11 @@ public class WidgetRenderer {
             return new RemoteViews(mContext.getPackageName(),
                     R.layout.widget_list_item_expanded_extension_loading);
         }
+
+        private static class CachedRow {
+            ExtensionData data;
+            RemoteViews views;
+        }
     }
 
     private static Bitmap loadExtensionIcon(Context context, ComponentName extension, int icon) {
@@ -32,7 +32,9 @@ import android.text.format.DateFormat;
 import android.text.format.DateUtils;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.TimeZone;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
@@ -52,6 +54,8 @@ public class CalendarExtension extends DashClockExtension {
     private static final int DEFAULT_LOOK_AHEAD_HOURS = 6;
     private int mLookAheadHours = DEFAULT_LOOK_AHEAD_HOURS;
 
+    private static final int MAX_TIMELINE_ENTRIES = 60;
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -61,6 +65,8 @@ public class CalendarExtension extends DashClockExtension {
             });
         }
 
+        // Even with a complete timeline, events that enter the look-ahead window later are only
+        // picked up by a new update.
         setUpdateWhenScreenOn(true);
     }
 
@@ -82,27 +88,65 @@ public class CalendarExtension extends DashClockExtension {
         }
 
         long currentTimestamp = getCurrentTimestamp();
-        long nextTimestamp = 0;
-        long timeUntilNextAppointent = 0;
+        List<Event> events = new ArrayList<Event>();
         while (cursor.moveToNext()) {
-            nextTimestamp = cursor.getLong(EventsQuery.BEGIN);
-            timeUntilNextAppointent = nextTimestamp - currentTimestamp;
-            if (timeUntilNextAppointent >= 0) {
-                break;
-            }
-
             // Skip over events that are not ALL_DAY but span multiple days, including
             // the next 6 hours. An example is an event that starts at 4pm yesterday
             // day and ends 6pm tomorrow.
+            if (cursor.getLong(EventsQuery.BEGIN) < currentTimestamp) {
+                continue;
+            }
+
+            Event event = new Event();
+            event.id = cursor.getLong(EventsQuery.EVENT_ID);
+            event.begin = cursor.getLong(EventsQuery.BEGIN);
+            event.end = cursor.getLong(EventsQuery.END);
+            event.title = cursor.getString(EventsQuery.TITLE);
+            events.add(event);
         }
+        cursor.close();
 
-        if (cursor.isAfterLast()) {
+        if (events.isEmpty()) {
             LOGD(TAG, "No upcoming appointments found.");
-            cursor.close();
             publishUpdate(new ExtensionData());
             return;
         }
 
+        // Publish the data as it should be shown from now until the timeline runs out, so that
+        // DashClock can keep the "in N mins" status current without waking us up.
+        List<Long> validFromTimes = new ArrayList<Long>();
+        List<ExtensionData> entries = new ArrayList<ExtensionData>();
+        int eventIndex = 0;
+        long timestamp = currentTimestamp;
+        while (entries.size() < MAX_TIMELINE_ENTRIES) {
+            while (eventIndex < events.size() && events.get(eventIndex).begin < timestamp) {
+                ++eventIndex;
+            }
+
+            validFromTimes.add(timestamp);
+            if (eventIndex >= events.size()) {
+                entries.add(new ExtensionData());
+                break;
+            }
+
+            Event event = events.get(eventIndex);
+            entries.add(buildExtensionData(event, timestamp));
+            timestamp = getNextStatusChangeTimestamp(event.begin, timestamp);
+        }
+
+        long[] times = new long[validFromTimes.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = validFromTimes.get(i);
+        }
+
+        publishUpdateTimeline(times, entries.toArray(new ExtensionData[entries.size()]));
+    }
+
+    /**
+     * Builds the data to show at the given time for the given upcoming event.
+     */
+    private ExtensionData buildExtensionData(Event event, long timestamp) {
+        long timeUntilNextAppointent = event.begin - timestamp;
         int minutesUntilNextAppointment = (int) (timeUntilNextAppointent / MINUTE_MILLIS);
 
         String untilString;
@@ -122,17 +166,12 @@ public class CalendarExtension extends DashClockExtension {
                         R.plurals.calendar_template_days, days, days);
             }
         }
-        String eventTitle = cursor.getString(EventsQuery.TITLE);
-        long eventId = cursor.getLong(EventsQuery.EVENT_ID);
-        long eventBegin = cursor.getLong(EventsQuery.BEGIN);
-        long eventEnd = cursor.getLong(EventsQuery.END);
-        cursor.close();
 
         Calendar nextEventCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        nextEventCalendar.setTimeInMillis(nextTimestamp);
+        nextEventCalendar.setTimeInMillis(event.begin);
 
         StringBuilder expandedBodyFormat = new StringBuilder();
-        if (nextTimestamp - currentTimestamp > 24 * HOUR_MILLIS) {
+        if (timeUntilNextAppointent > 24 * HOUR_MILLIS) {
             expandedBodyFormat.append("EEEE, ");
         }
 
@@ -144,18 +183,48 @@ public class CalendarExtension extends DashClockExtension {
 
         String expandedBody = new SimpleDateFormat(expandedBodyFormat.toString())
                 .format(nextEventCalendar.getTime());
-        publishUpdate(new ExtensionData()
+        return new ExtensionData()
                 .visible(timeUntilNextAppointent >= 0
                         && timeUntilNextAppointent <= mLookAheadHours * HOUR_MILLIS)
                 .icon(R.drawable.ic_extension_calendar)
                 .status(untilString)
-                .expandedTitle(eventTitle)
+                .expandedTitle(event.title)
                 .expandedBody(expandedBody)
                 .clickIntent(new Intent(Intent.ACTION_VIEW)
                         .setData(Uri.withAppendedPath(CalendarContract.Events.CONTENT_URI,
-                                Long.toString(eventId)))
-                        .putExtra(CalendarContract.EXTRA_EVENT_BEGIN_TIME, eventBegin)
-                        .putExtra(CalendarContract.EXTRA_EVENT_END_TIME, eventEnd)));
+                                Long.toString(event.id)))
+                        .putExtra(CalendarContract.EXTRA_EVENT_BEGIN_TIME, event.begin)
+                        .putExtra(CalendarContract.EXTRA_EVENT_END_TIME, event.end));
+    }
+
+    /**
+     * Returns the earliest time after the given one at which the data built by
+     * {@link #buildExtensionData(Event, long)} for an event beginning at the given time changes.
+     * Once the event begins, the next upcoming event is shown instead.
+     */
+    private static long getNextStatusChangeTimestamp(long begin, long timestamp) {
+        long timeUntil = begin - timestamp;
+        int minutes = (int) (timeUntil / MINUTE_MILLIS);
+
+        // The status changes once fewer than this many minutes remain.
+        int thresholdMinutes;
+        if (minutes < 60) {
+            thresholdMinutes = minutes;
+        } else {
+            int hours = Math.round(minutes / 60f);
+            if (hours >= 24) {
+                hours = (hours / 24) * 24;
+            }
+            thresholdMinutes = Math.max(60, hours * 60 - 30);
+        }
+
+        long next = begin - thresholdMinutes * MINUTE_MILLIS + 1;
+        if (timeUntil > 24 * HOUR_MILLIS) {
+            // The expanded body drops the day of the week.
+            next = Math.min(next, begin - 24 * HOUR_MILLIS);
+        }
+
+        return Math.max(next, timestamp + 1);
     }
 
     private static long getCurrentTimestamp() {
@@ -180,6 +249,13 @@ public class CalendarExtension extends DashClockExtension {
                 CalendarContract.Instances.BEGIN);
     }
 
+    private static class Event {
+        long id;
+        long begin;
+        long end;
+        String title;
+    }
+
     private interface EventsQuery {
         String[] PROJECTION = {
                 CalendarContract.Instances.EVENT_ID,
@@ -16,7 +16,11 @@
 
 package com.google.android.apps.dashclock.configuration;
 
+import com.google.android.apps.dashclock.WidgetRenderer;
+
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 /**
@@ -47,6 +51,45 @@ public class AppearanceConfig {
             "condensed_bold"
     };
 
+    private static RenderSettings sRenderSettings;
+
+    /**
+     * Invalidates {@link #sRenderSettings} when a preference it depends on changes. Held in a
+     * static field since {@link SharedPreferences} only keeps weak references to listeners.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sRenderSettingsInvalidator;
+
+    /**
+     * Returns the current {@link RenderSettings}, computing them only if a relevant preference
+     * has changed since they were last requested.
+     */
+    public static synchronized RenderSettings getRenderSettings(Context context) {
+        if (sRenderSettingsInvalidator == null) {
+            sRenderSettingsInvalidator = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                    if (PREF_STYLE_TIME.equals(key)
+                            || PREF_STYLE_DATE.equals(key)
+                            || PREF_HOMESCREEN_BACKGROUND_OPACITY.equals(key)
+                            || PREF_AGGRESSIVE_CENTERING.equals(key)
+                            || WidgetRenderer.PREF_CLOCK_SHORTCUT.equals(key)) {
+                        synchronized (AppearanceConfig.class) {
+                            sRenderSettings = null;
+                        }
+                    }
+                }
+            };
+            PreferenceManager.getDefaultSharedPreferences(context)
+                    .registerOnSharedPreferenceChangeListener(sRenderSettingsInvalidator);
+        }
+
+        if (sRenderSettings == null) {
+            sRenderSettings = new RenderSettings(context.getApplicationContext());
+        }
+
+        return sRenderSettings;
+    }
+
     public static int getCurrentTimeLayout(Context context) {
         String currentTimeStyleName = PreferenceManager.getDefaultSharedPreferences(context)
                 .getString(PREF_STYLE_TIME, TIME_STYLE_NAMES[0]);
@@ -84,4 +127,27 @@ public class AppearanceConfig {
             return (opacity * 256 / 100) << 24;
         }
     }
+
+    /**
+     * An immutable snapshot of the user-defined settings that affect widget rendering. Obtain
+     * instances with {@link #getRenderSettings(Context)}.
+     */
+    public static class RenderSettings {
+        public final int homescreenBackgroundColor;
+        public final boolean aggressiveCenteringEnabled;
+        public final int timeLayoutId;
+        public final int dateLayoutId;
+        public final Intent clockIntent;
+
+        private RenderSettings(Context context) {
+            homescreenBackgroundColor = getHomescreenBackgroundColor(context);
+            aggressiveCenteringEnabled = isAggressiveCenteringEnabled(context);
+            timeLayoutId = getCurrentTimeLayout(context);
+            dateLayoutId = getCurrentDateLayout(context);
+            clockIntent = AppChooserPreference.getIntentValue(
+                    PreferenceManager.getDefaultSharedPreferences(context)
+                            .getString(WidgetRenderer.PREF_CLOCK_SHORTCUT, null),
+                    WidgetRenderer.DEFAULT_CLOCK_INTENT);
+        }
+    }
 }
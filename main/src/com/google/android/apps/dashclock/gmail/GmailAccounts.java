@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.gmail;
+
+import com.google.android.apps.dashclock.LogUtils;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * Keeps track of the device's Google accounts and which of them are selected for
+ * {@link GmailExtension}, so that neither the {@link AccountManager} nor preferences need to be
+ * read on every update. Both are read again once accounts or the selection change.
+ */
+class GmailAccounts {
+    private static final String TAG = LogUtils.makeLogTag(GmailAccounts.class);
+
+    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
+
+    //private static final String[] FEATURES_MAIL = {"service_mail"};
+
+    private static GmailAccounts sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mSharedPreferences;
+    private final List<OnAccountsChangedListener> mListeners
+            = new ArrayList<OnAccountsChangedListener>();
+
+    private String[] mAllAccountNames;
+    private Set<String> mSelectedAccounts;
+
+    /**
+     * Listener for changes to the available or selected accounts.
+     */
+    interface OnAccountsChangedListener {
+        void onAccountsChanged();
+    }
+
+    // Held here, since the listener is only weakly referenced by SharedPreferences.
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefChangeListener
+            = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+            if (GmailExtension.PREF_ACCOUNTS.equals(key)) {
+                LOGD(TAG, "Selected accounts changed.");
+                synchronized (GmailAccounts.this) {
+                    mSelectedAccounts = null;
+                }
+                notifyListeners();
+            }
+        }
+    };
+
+    private final OnAccountsUpdateListener mAccountsUpdateListener
+            = new OnAccountsUpdateListener() {
+        @Override
+        public void onAccountsUpdated(Account[] accounts) {
+            LOGD(TAG, "Accounts changed.");
+            synchronized (GmailAccounts.this) {
+                mAllAccountNames = null;
+                mSelectedAccounts = null;
+            }
+            notifyListeners();
+        }
+    };
+
+    static synchronized GmailAccounts getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GmailAccounts(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GmailAccounts(Context context) {
+        mContext = context;
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mPrefChangeListener);
+        AccountManager.get(context).addOnAccountsUpdatedListener(mAccountsUpdateListener, null,
+                false);
+    }
+
+    /**
+     * Returns the names of all Google accounts on the device.
+     */
+    synchronized String[] getAllAccountNames() {
+        if (mAllAccountNames == null) {
+            Account[] accounts = AccountManager.get(mContext).getAccountsByType(
+                    ACCOUNT_TYPE_GOOGLE);
+            mAllAccountNames = new String[accounts.length];
+            for (int i = 0; i < accounts.length; i++) {
+                mAllAccountNames[i] = accounts[i].name;
+            }
+        }
+
+        return mAllAccountNames.clone();
+    }
+
+    /**
+     * Returns the names of the accounts selected in settings, or of all accounts if none have
+     * been selected yet.
+     */
+    synchronized Set<String> getSelectedAccounts() {
+        if (mSelectedAccounts == null) {
+            Set<String> allAccountsSet = new HashSet<String>();
+            allAccountsSet.addAll(Arrays.asList(getAllAccountNames()));
+            mSelectedAccounts = Collections.unmodifiableSet(new HashSet<String>(
+                    mSharedPreferences.getStringSet(GmailExtension.PREF_ACCOUNTS,
+                            allAccountsSet)));
+        }
+
+        return mSelectedAccounts;
+    }
+
+    void addOnAccountsChangedListener(OnAccountsChangedListener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    void removeOnAccountsChangedListener(OnAccountsChangedListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void notifyListeners() {
+        List<OnAccountsChangedListener> listeners;
+        synchronized (mListeners) {
+            listeners = new ArrayList<OnAccountsChangedListener>(mListeners);
+        }
+
+        for (OnAccountsChangedListener listener : listeners) {
+            listener.onAccountsChanged();
+        }
+    }
+}
@@ -22,22 +22,30 @@ import com.google.android.apps.dashclock.api.ExtensionData;
 
 import net.nurik.roman.dashclock.R;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.preference.PreferenceManager;
-import android.util.Pair;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
 
 /**
  * Gmail unread count extension.
@@ -48,92 +56,154 @@ public class GmailExtension extends DashClockExtension {
     public static final String PREF_ACCOUNTS = "pref_gmail_accounts";
     public static final String PREF_LABEL = "pref_gmail_label";
 
-    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
+    // Remembers the URI of the label last found in each account, so it can be watched directly.
+    private static final String PREF_LABEL_URI_PREFIX = "gmail_label_uri_";
 
-    //private static final String[] FEATURES_MAIL = {"service_mail"};
+    private static final int MAX_PARALLEL_LABEL_QUERIES = 3;
 
-    static String[] getAllAccountNames(Context context) {
-        final Account[] accounts = AccountManager.get(context).getAccountsByType(
-                GmailExtension.ACCOUNT_TYPE_GOOGLE);
-        final String[] accountNames = new String[accounts.length];
-        for (int i = 0; i < accounts.length; i++) {
-            accountNames[i] = accounts[i].name;
-        }
-        return accountNames;
+    private static final ThreadPoolExecutor sLabelQueryExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_LABEL_QUERIES, MAX_PARALLEL_LABEL_QUERIES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sLabelQueryExecutor.allowCoreThreadTimeOut(true);
     }
 
-    private Set<String> getSelectedAccounts() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        final String[] accounts = GmailExtension.getAllAccountNames(this);
-        Set<String> allAccountsSet = new HashSet<String>();
-        allAccountsSet.addAll(Arrays.asList(accounts));
-        return sp.getStringSet(PREF_ACCOUNTS, allAccountsSet);
+    /**
+     * The unread count of {@link #mLabelCanonical} in each account, as of the last time that
+     * account's labels were queried.
+     */
+    private final Map<String, Integer> mUnreadCounts = new HashMap<String, Integer>();
+    private final Map<String, String> mLabelUris = new HashMap<String, String>();
+    private String mLabelCanonical;
+
+    /**
+     * Guards the unread counts and label URIs above, since they're refreshed both by updates from
+     * DashClock and, one account at a time, on {@link #mAccountRefreshExecutor}.
+     */
+    private final Object mRefreshLock = new Object();
+
+    /**
+     * Accounts whose labels changed and which are waiting to be queried again. Guarded by itself,
+     * since content observers are notified on binder threads.
+     */
+    private final Set<String> mPendingAccounts = new HashSet<String>();
+    private ExecutorService mAccountRefreshExecutor;
+
+    /**
+     * URIs watched so far, and the observers watching them. Guarded by {@link #mWatchedUris},
+     * since newly selected accounts are watched from the main thread.
+     */
+    private final Set<String> mWatchedUris = new HashSet<String>();
+    private final List<ContentObserver> mAccountObservers = new ArrayList<ContentObserver>();
+
+    private GmailAccounts mAccounts;
+
+    private final GmailAccounts.OnAccountsChangedListener mAccountsChangedListener
+            = new GmailAccounts.OnAccountsChangedListener() {
+        @Override
+        public void onAccountsChanged() {
+            // Only newly selected accounts need watching; the rest already are.
+            watchSelectedAccounts();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mAccounts = GmailAccounts.getInstance(this);
+        mAccounts.addOnAccountsChangedListener(mAccountsChangedListener);
+        mAccountRefreshExecutor = Executors.newSingleThreadExecutor();
     }
 
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
-        if (!isReconnect) {
-            Set<String> selectedAccounts = getSelectedAccounts();
-            String[] uris = new String[selectedAccounts.size()];
-
-            int i = 0;
-            for (String account : selectedAccounts) {
-                uris[i++] = GmailContract.Labels.getLabelsUri(account).toString();
-                // TODO: only watch the individual label's URI (GmailContract.Labels.URI)
-            }
+        // Label URIs are watched from this process, so a reconnect to a restarted process must
+        // watch them again. URIs this instance already watches are skipped.
+        watchSelectedAccounts();
+    }
 
-            addWatchContentUris(uris);
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mAccounts.removeOnAccountsChangedListener(mAccountsChangedListener);
+        synchronized (mWatchedUris) {
+            for (ContentObserver observer : mAccountObservers) {
+                getContentResolver().unregisterContentObserver(observer);
+            }
+            mAccountObservers.clear();
         }
+        mAccountRefreshExecutor.shutdownNow();
     }
 
     @Override
     protected void onUpdateData(int reason) {
+        synchronized (mRefreshLock) {
+            refreshAndPublish(null);
+        }
+    }
+
+    /**
+     * Queries the labels of the given account again, or of all selected accounts if null, and
+     * publishes the resulting unread counts. Must be called with {@link #mRefreshLock} held.
+     */
+    private void refreshAndPublish(String changedAccount) {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        String labelCanonical = sp.getString(PREF_LABEL, "i");
-        Set<String> selectedAccounts = getSelectedAccounts();
+        String labelCanonical = getLabelCanonical(sp);
+        Set<String> selectedAccounts = mAccounts.getSelectedAccounts();
 
-        if ("i".equals(labelCanonical)) {
-            labelCanonical = GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX;
-        } else if ("p".equals(labelCanonical)) {
-            labelCanonical = GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX;
+        if (!labelCanonical.equals(mLabelCanonical)) {
+            mLabelCanonical = labelCanonical;
+            mUnreadCounts.clear();
+            mLabelUris.clear();
         }
+        mUnreadCounts.keySet().retainAll(selectedAccounts);
 
-        int unread = 0;
-        List<Pair<String, Integer>> unreadPerAccount = new ArrayList<Pair<String, Integer>>();
-
+        List<String> accountsToQuery = new ArrayList<String>();
         for (String account : selectedAccounts) {
-            Cursor cursor = openLabelsCursor(account);
-            if (cursor == null || cursor.isAfterLast()) {
+            if (changedAccount == null || changedAccount.equals(account)
+                    || !mUnreadCounts.containsKey(account)) {
+                accountsToQuery.add(account);
+            }
+        }
+
+        Map<String, LabelInfo> labels = queryLabels(accountsToQuery, labelCanonical, sp);
+        for (String account : accountsToQuery) {
+            LabelInfo label = labels.get(account);
+            if (label == null) {
                 LOGD(TAG, "No Gmail inbox information found for account.");
-                if (cursor != null) {
-                    cursor.close();
-                }
+                mUnreadCounts.remove(account);
                 continue;
             }
 
-            while (cursor.moveToNext()) {
-                if (labelCanonical.equals(cursor.getString(LabelsQuery.CANONICAL_NAME))) {
-                    int unreadThisAccount = cursor.getInt(LabelsQuery.NUM_UNREAD_CONVERSATIONS);
-                    unreadPerAccount.add(new Pair<String, Integer>(account, unreadThisAccount));
-                    unread += unreadThisAccount;
-                    break;
+            mUnreadCounts.put(account, label.unread);
+            if (label.uri != null && !label.uri.equals(mLabelUris.get(account))) {
+                mLabelUris.put(account, label.uri);
+                String prefKey = getLabelUriPrefKey(account, labelCanonical);
+                if (!label.uri.equals(sp.getString(prefKey, null))) {
+                    sp.edit().putString(prefKey, label.uri).apply();
                 }
+                watchAccountUri(account, Uri.parse(label.uri));
             }
-
-            cursor.close();
         }
 
+        LOGD(TAG, "Queried labels for " + accountsToQuery.size() + " of "
+                + selectedAccounts.size() + " accounts.");
+
+        int unread = 0;
         StringBuilder body = new StringBuilder();
-        for (Pair<String, Integer> pair : unreadPerAccount) {
-            if (pair.second == 0) {
+        for (String account : selectedAccounts) {
+            Integer unreadThisAccount = mUnreadCounts.get(account);
+            if (unreadThisAccount == null || unreadThisAccount == 0) {
                 continue;
             }
 
+            unread += unreadThisAccount;
             if (body.length() > 0) {
                 body.append("\n");
             }
-            body.append(pair.first).append(" (").append(pair.second).append(")");
+            body.append(account).append(" (").append(unreadThisAccount).append(")");
         }
 
         publishUpdate(new ExtensionData()
@@ -148,6 +218,169 @@ public class GmailExtension extends DashClockExtension {
                         .addCategory(Intent.CATEGORY_LAUNCHER)));
     }
 
+    private static String getLabelCanonical(SharedPreferences sp) {
+        String labelCanonical = sp.getString(PREF_LABEL, "i");
+        if ("i".equals(labelCanonical)) {
+            labelCanonical = GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX;
+        } else if ("p".equals(labelCanonical)) {
+            labelCanonical = GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX;
+        }
+        return labelCanonical;
+    }
+
+    private static String getLabelUriPrefKey(String account, String labelCanonical) {
+        return PREF_LABEL_URI_PREFIX + labelCanonical + "_" + account;
+    }
+
+    private void watchSelectedAccounts() {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        String labelCanonical = getLabelCanonical(sp);
+        for (String account : mAccounts.getSelectedAccounts()) {
+            // Accounts whose label was found before only need that label watched.
+            String labelUri = sp.getString(getLabelUriPrefKey(account, labelCanonical), null);
+            watchAccountUri(account, (labelUri != null)
+                    ? Uri.parse(labelUri)
+                    : GmailContract.Labels.getLabelsUri(account));
+        }
+    }
+
+    /**
+     * Watches the given URI for changes to the given account's labels, refreshing just that
+     * account when it changes. URIs already watched are skipped. This is done here rather than by
+     * DashClock, which wouldn't say which account changed.
+     */
+    private void watchAccountUri(final String account, Uri uri) {
+        synchronized (mWatchedUris) {
+            if (!mWatchedUris.add(uri.toString())) {
+                return;
+            }
+
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    refreshAccountLater(account);
+                }
+            };
+            getContentResolver().registerContentObserver(uri, true, observer);
+            mAccountObservers.add(observer);
+        }
+    }
+
+    /**
+     * Queues a refresh of the given account, unless one is already queued.
+     */
+    private void refreshAccountLater(final String account) {
+        synchronized (mPendingAccounts) {
+            if (mAccountRefreshExecutor.isShutdown() || !mPendingAccounts.add(account)) {
+                return;
+            }
+        }
+
+        mAccountRefreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingAccounts) {
+                    mPendingAccounts.remove(account);
+                }
+
+                synchronized (mRefreshLock) {
+                    refreshAndPublish(account);
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up the given label in each of the given accounts, querying several accounts at once
+     * when there are more than one. Accounts without the label are left out of the result.
+     */
+    private Map<String, LabelInfo> queryLabels(List<String> accounts,
+            final String labelCanonical, final SharedPreferences sp) {
+        Map<String, LabelInfo> labels = new HashMap<String, LabelInfo>();
+        if (accounts.size() == 1) {
+            String account = accounts.get(0);
+            LabelInfo label = queryLabel(account, labelCanonical,
+                    getKnownLabelUri(account, labelCanonical, sp));
+            if (label != null) {
+                labels.put(account, label);
+            }
+            return labels;
+        }
+
+        List<Future<LabelInfo>> futures = new ArrayList<Future<LabelInfo>>();
+        for (final String account : accounts) {
+            final String labelUri = getKnownLabelUri(account, labelCanonical, sp);
+            futures.add(sLabelQueryExecutor.submit(new Callable<LabelInfo>() {
+                @Override
+                public LabelInfo call() throws Exception {
+                    return queryLabel(account, labelCanonical, labelUri);
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    LabelInfo label = futures.get(i).get();
+                    if (label != null) {
+                        labels.put(accounts.get(i), label);
+                    }
+                } catch (ExecutionException e) {
+                    LOGW(TAG, "Error querying Gmail labels.", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<LabelInfo> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return labels;
+    }
+
+    private String getKnownLabelUri(String account, String labelCanonical, SharedPreferences sp) {
+        String labelUri = mLabelUris.get(account);
+        return (labelUri != null)
+                ? labelUri
+                : sp.getString(getLabelUriPrefKey(account, labelCanonical), null);
+    }
+
+    /**
+     * Looks up the given label in the given account, querying just that label if its URI is
+     * known, or else all of the account's labels.
+     */
+    private LabelInfo queryLabel(String account, String labelCanonical, String labelUri) {
+        if (labelUri != null) {
+            LabelInfo label = readLabel(getContentResolver().query(Uri.parse(labelUri),
+                    LabelsQuery.PROJECTION, null, null, null), labelCanonical);
+            if (label != null) {
+                return label;
+            }
+        }
+
+        return readLabel(openLabelsCursor(account), labelCanonical);
+    }
+
+    private static LabelInfo readLabel(Cursor cursor, String labelCanonical) {
+        if (cursor == null) {
+            return null;
+        }
+
+        LabelInfo label = null;
+        while (cursor.moveToNext()) {
+            if (labelCanonical.equals(cursor.getString(LabelsQuery.CANONICAL_NAME))) {
+                label = new LabelInfo();
+                label.unread = cursor.getInt(LabelsQuery.NUM_UNREAD_CONVERSATIONS);
+                label.uri = cursor.getString(LabelsQuery.URI);
+                break;
+            }
+        }
+
+        cursor.close();
+        return label;
+    }
+
     private Cursor openLabelsCursor(String account) {
         return getContentResolver().query(
                 GmailContract.Labels.getLabelsUri(account),
@@ -157,6 +390,11 @@ public class GmailExtension extends DashClockExtension {
                 null);
     }
 
+    private static class LabelInfo {
+        int unread;
+        String uri;
+    }
+
     private interface LabelsQuery {
         String[] PROJECTION = {
                 GmailContract.Labels.NUM_UNREAD_CONVERSATIONS,
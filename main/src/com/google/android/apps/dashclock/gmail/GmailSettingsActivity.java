@@ -53,7 +53,7 @@ public class GmailSettingsActivity extends BaseSettingsActivity {
     }
 
     private void addAccountsPreference() {
-        final String[] accounts = GmailExtension.getAllAccountNames(this);
+        final String[] accounts = GmailAccounts.getInstance(this).getAllAccountNames();
         Set<String> allAccountsSet = new HashSet<String>();
         allAccountsSet.addAll(Arrays.asList(accounts));
 
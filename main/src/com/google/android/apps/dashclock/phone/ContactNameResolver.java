@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.phone;
+
+import com.google.android.apps.dashclock.LogUtils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+
+/**
+ * Resolves phone numbers and raw contact IDs to contact display names, for use with
+ * {@link SmsExtension} and {@link MissedCallsExtension}. Results, including misses, are kept in
+ * LRU caches that are cleared whenever contacts change. Lookups of many numbers or IDs are
+ * batched into as few provider queries as possible.
+ */
+class ContactNameResolver {
+    private static final String TAG = LogUtils.makeLogTag(ContactNameResolver.class);
+
+    private static final int CACHE_SIZE = 200;
+
+    // Numbers are matched by their trailing digits, as the platform does for caller ID.
+    private static final int MIN_MATCH_DIGITS = 7;
+
+    // Keeps queries well below SQLite's limit on bound arguments.
+    private static final int MAX_BATCH_SIZE = 50;
+
+    // Cached for numbers and contacts without a display name, since LruCache can't hold nulls.
+    private static final String NO_NAME = "";
+
+    private static ContactNameResolver sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final LruCache<String, String> mNamesByNumber
+            = new LruCache<String, String>(CACHE_SIZE);
+    private final LruCache<Long, String> mNamesByRawContactId
+            = new LruCache<Long, String>(CACHE_SIZE);
+    private int mQueryCount = 0;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            LOGD(TAG, "Contacts changed; clearing cached names.");
+            mNamesByNumber.evictAll();
+            mNamesByRawContactId.evictAll();
+        }
+    };
+
+    static synchronized ContactNameResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactNameResolver(Context context) {
+        mContentResolver = context.getContentResolver();
+        mContentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                mContactsObserver);
+    }
+
+    /**
+     * Returns the number of provider queries made so far.
+     */
+    synchronized int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * Returns display names for the given phone numbers (or other message addresses). Numbers
+     * without a matching contact are left out of the result.
+     */
+    synchronized Map<String, String> getDisplayNamesForNumbers(Collection<String> numbers) {
+        Map<String, String> names = new HashMap<String, String>();
+        Set<String> uncached = new LinkedHashSet<String>();
+        for (String number : numbers) {
+            String key = normalize(number);
+            if (key == null) {
+                continue;
+            }
+
+            String name = mNamesByNumber.get(key);
+            if (name == null) {
+                uncached.add(number);
+            } else if (!name.isEmpty()) {
+                names.put(number, name);
+            }
+        }
+
+        List<String> batch = new ArrayList<String>();
+        for (String number : uncached) {
+            batch.add(number);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                queryNumbers(batch, names);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            queryNumbers(batch, names);
+        }
+
+        return names;
+    }
+
+    /**
+     * Returns display names for the given raw contact IDs. IDs that don't match a raw contact are
+     * left out of the result.
+     */
+    synchronized Map<Long, String> getDisplayNamesForRawContacts(Collection<Long> rawContactIds) {
+        Map<Long, String> names = new HashMap<Long, String>();
+        List<Long> uncached = new ArrayList<Long>();
+        for (Long id : rawContactIds) {
+            String name = mNamesByRawContactId.get(id);
+            if (name == null) {
+                if (!uncached.contains(id)) {
+                    uncached.add(id);
+                }
+            } else if (!name.isEmpty()) {
+                names.put(id, name);
+            }
+        }
+
+        for (int start = 0; start < uncached.size(); start += MAX_BATCH_SIZE) {
+            List<Long> batch = uncached.subList(start,
+                    Math.min(start + MAX_BATCH_SIZE, uncached.size()));
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = Long.toString(batch.get(i));
+            }
+
+            Cursor cursor = query(ContactsContract.RawContacts.CONTENT_URI,
+                    RawContactsQuery.PROJECTION,
+                    ContactsContract.RawContacts._ID + " IN (" + makePlaceholders(args.length)
+                            + ")",
+                    args);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(RawContactsQuery.DISPLAY_NAME);
+                    if (!TextUtils.isEmpty(name)) {
+                        names.put(cursor.getLong(RawContactsQuery._ID), name);
+                    }
+                }
+                cursor.close();
+            }
+
+            for (Long id : batch) {
+                String name = names.get(id);
+                mNamesByRawContactId.put(id, (name != null) ? name : NO_NAME);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Looks up a batch of uncached numbers with a single query on their trailing digits. Numbers
+     * that don't match are cached as having no name; only addresses that aren't phone numbers
+     * (e.g. email addresses) fall back to the platform's phone lookup, one query each.
+     *
+     * <p>The leading wildcard means the query scans every phone row rather than using an index.
+     * That's one scan per batch, which costs less than an indexed phone lookup query per number.
+     * Matching exact normalized numbers instead would need E.164 formatting, which the platform
+     * doesn't offer before API 21. Rows without a normalized number are included too, and matched
+     * with {@link PhoneNumberUtils#compare(String, String)} like the rest.
+     */
+    private void queryNumbers(List<String> numbers, Map<String, String> names) {
+        List<String> args = new ArrayList<String>();
+        List<String> unmatched = new ArrayList<String>();
+        List<String> otherAddresses = new ArrayList<String>();
+        for (String number : numbers) {
+            String digits = PhoneNumberUtils.stripSeparators(number);
+            if (!PhoneNumberUtils.isWellFormedSmsAddress(number) || TextUtils.isEmpty(digits)) {
+                // E.g. an email address; only the platform lookup can match these.
+                otherAddresses.add(number);
+                continue;
+            }
+
+            if (digits.length() > MIN_MATCH_DIGITS) {
+                digits = digits.substring(digits.length() - MIN_MATCH_DIGITS);
+            }
+            args.add("%" + digits);
+            unmatched.add(number);
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < args.size(); i++) {
+            selection.append(ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER)
+                    .append(" LIKE ? OR ");
+        }
+        selection.append(ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER)
+                .append(" IS NULL");
+
+        Cursor cursor = args.isEmpty() ? null
+                : query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                        PhonesQuery.PROJECTION, selection.toString(),
+                        args.toArray(new String[args.size()]));
+        if (cursor != null) {
+            while (cursor.moveToNext() && !unmatched.isEmpty()) {
+                String phoneNumber = cursor.getString(PhonesQuery.NUMBER);
+                String name = cursor.getString(PhonesQuery.DISPLAY_NAME);
+                if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(name)) {
+                    continue;
+                }
+
+                for (int i = unmatched.size() - 1; i >= 0; i--) {
+                    String number = unmatched.get(i);
+                    if (PhoneNumberUtils.compare(number, phoneNumber)) {
+                        names.put(number, name);
+                        mNamesByNumber.put(normalize(number), name);
+                        unmatched.remove(i);
+                    }
+                }
+            }
+            cursor.close();
+        }
+
+        // Numbers that matched no contact, e.g. unknown senders and callers.
+        for (String number : unmatched) {
+            mNamesByNumber.put(normalize(number), NO_NAME);
+        }
+
+        for (String address : otherAddresses) {
+            String name = lookUpNumber(address);
+            if (name != null) {
+                names.put(address, name);
+            }
+            mNamesByNumber.put(normalize(address), (name != null) ? name : NO_NAME);
+        }
+    }
+
+    private String lookUpNumber(String number) {
+        Cursor cursor;
+        try {
+            cursor = query(ContactsContract.PhoneLookup.CONTENT_FILTER_URI.buildUpon()
+                    .appendPath(Uri.encode(number)).build(),
+                    PhoneLookupQuery.PROJECTION,
+                    null,
+                    null);
+        } catch (IllegalArgumentException e) {
+            // Can be called by the content provider (from Google Play crash/ANR console)
+            // java.lang.IllegalArgumentException: URI: content://com.android.contacts/phone_lookup/
+            LOGW(TAG, "Error looking up contact name", e);
+            return null;
+        }
+
+        if (cursor == null) {
+            return null;
+        }
+
+        String name = null;
+        if (cursor.moveToFirst()) {
+            name = cursor.getString(PhoneLookupQuery.DISPLAY_NAME);
+        }
+        cursor.close();
+        return TextUtils.isEmpty(name) ? null : name;
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection, String[] args) {
+        ++mQueryCount;
+        return mContentResolver.query(uri, projection, selection, args, null);
+    }
+
+    private static String normalize(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+
+        String stripped = PhoneNumberUtils.stripSeparators(number);
+        return TextUtils.isEmpty(stripped) ? number : stripped;
+    }
+
+    private static String makePlaceholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    private interface RawContactsQuery {
+        String[] PROJECTION = {
+                ContactsContract.RawContacts._ID,
+                ContactsContract.RawContacts.DISPLAY_NAME_PRIMARY,
+        };
+
+        int _ID = 0;
+        int DISPLAY_NAME = 1;
+    }
+
+    private interface PhonesQuery {
+        String[] PROJECTION = {
+                ContactsContract.CommonDataKinds.Phone.NUMBER,
+                ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+        };
+
+        int NUMBER = 0;
+        int DISPLAY_NAME = 1;
+    }
+
+    private interface PhoneLookupQuery {
+        String[] PROJECTION = {
+                ContactsContract.PhoneLookup.DISPLAY_NAME,
+        };
+
+        int DISPLAY_NAME = 0;
+    }
+}
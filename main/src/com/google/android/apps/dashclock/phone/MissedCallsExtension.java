@@ -27,12 +27,27 @@ import android.database.Cursor;
 import android.provider.CallLog;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
 /**
  * Number of missed calls extension.
  */
 public class MissedCallsExtension extends DashClockExtension {
     private static final String TAG = LogUtils.makeLogTag(MissedCallsExtension.class);
 
+    /**
+     * The missed calls found by the last update, by call log ID, in call log order.
+     */
+    private final Map<Long, MissedCall> mMissedCalls = new LinkedHashMap<Long, MissedCall>();
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -45,44 +60,137 @@ public class MissedCallsExtension extends DashClockExtension {
 
     @Override
     protected void onUpdateData(int reason) {
-        Cursor cursor = openMissedCallsCursor();
+        // First list the missed calls, and only read the details of those not seen before. The
+        // cached names of known calls are re-read, since the call log updates them when the
+        // caller's contact changes.
+        List<Long> callIds = new ArrayList<Long>();
+        List<Long> newCallIds = new ArrayList<Long>();
+        boolean namesChanged = false;
+        Cursor cursor = openMissedCallsCursor(MissedCallIdsQuery.PROJECTION, null);
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(MissedCallIdsQuery.ID);
+            MissedCall knownCall = mMissedCalls.get(id);
+            if (knownCall == null) {
+                newCallIds.add(id);
+            } else {
+                String cachedName = cursor.getString(MissedCallIdsQuery.CACHED_NAME);
+                if (!TextUtils.equals(cachedName, knownCall.cachedName)) {
+                    knownCall.cachedName = cachedName;
+                    namesChanged = true;
+                }
+            }
+            callIds.add(id);
+        }
+        cursor.close();
+        int rowsScanned = callIds.size();
+
+        if (newCallIds.isEmpty() && callIds.size() == mMissedCalls.size() && !namesChanged
+                && reason == UPDATE_REASON_CONTENT_CHANGED) {
+            // E.g. an outgoing call was logged.
+            LOGD(TAG, "Missed calls unchanged; scanned " + rowsScanned + " rows.");
+            return;
+        }
+
+        Map<Long, MissedCall> missedCalls = new HashMap<Long, MissedCall>(mMissedCalls);
+        if (!newCallIds.isEmpty()) {
+            cursor = openMissedCallsCursor(MissedCallsQuery.PROJECTION, newCallIds);
+            while (cursor.moveToNext()) {
+                ++rowsScanned;
+                MissedCall missedCall = new MissedCall();
+                missedCall.cachedName = cursor.getString(MissedCallsQuery.CACHED_NAME);
+                missedCall.number = cursor.getString(MissedCallsQuery.NUMBER);
+                missedCalls.put(cursor.getLong(MissedCallsQuery.ID), missedCall);
+            }
+            cursor.close();
+        }
+
+        // The call log caches names as of the time of the call; numbers that weren't contacts
+        // then are looked up again, all at once.
+        mMissedCalls.clear();
+        List<String> uncachedNumbers = new ArrayList<String>();
+        for (long id : callIds) {
+            MissedCall missedCall = missedCalls.get(id);
+            if (missedCall == null) {
+                // No longer new by the time its details were read.
+                continue;
+            }
+
+            if (TextUtils.isEmpty(missedCall.cachedName)
+                    && !TextUtils.isEmpty(missedCall.number)) {
+                uncachedNumbers.add(missedCall.number);
+            }
+            mMissedCalls.put(id, missedCall);
+        }
+
+        LOGD(TAG, "Found " + mMissedCalls.size() + " missed calls; scanned " + rowsScanned
+                + " rows.");
 
-        int missedCalls = 0;
+        Map<String, String> namesByNumber = uncachedNumbers.isEmpty()
+                ? Collections.<String, String>emptyMap()
+                : ContactNameResolver.getInstance(this).getDisplayNamesForNumbers(uncachedNumbers);
+
+        int missedCallCount = mMissedCalls.size();
         StringBuilder names = new StringBuilder();
-        while (cursor.moveToNext()) {
-            ++missedCalls;
+        for (MissedCall missedCall : mMissedCalls.values()) {
             if (names.length() > 0) {
                 names.append(", ");
             }
-            String name = cursor.getString(MissedCallsQuery.CACHED_NAME);
+            String name = missedCall.cachedName;
             if (TextUtils.isEmpty(name)) {
-                name = cursor.getString(MissedCallsQuery.NUMBER);
+                name = namesByNumber.get(missedCall.number);
+            }
+            if (TextUtils.isEmpty(name)) {
+                name = missedCall.number;
             }
             names.append(name);
         }
-        cursor.close();
 
         publishUpdate(new ExtensionData()
-                .visible(missedCalls > 0)
+                .visible(missedCallCount > 0)
                 .icon(R.drawable.ic_extension_missed_calls)
-                .status(Integer.toString(missedCalls))
+                .status(Integer.toString(missedCallCount))
                 .expandedTitle(
                         getResources().getQuantityString(
-                                R.plurals.missed_calls_title_template, missedCalls, missedCalls))
+                                R.plurals.missed_calls_title_template, missedCallCount,
+                                missedCallCount))
                 .expandedBody(getString(R.string.missed_calls_body_template, names.toString()))
                 .clickIntent(new Intent(Intent.ACTION_VIEW, CallLog.Calls.CONTENT_URI)));
     }
 
-    private Cursor openMissedCallsCursor() {
+    /**
+     * Opens a cursor over new missed calls, optionally limited to the given call log entries.
+     */
+    private Cursor openMissedCallsCursor(String[] projection, Collection<Long> callIds) {
+        String selection = CallLog.Calls.TYPE + "=" + CallLog.Calls.MISSED_TYPE + " AND "
+                + CallLog.Calls.NEW + "!=0";
+        if (callIds != null) {
+            selection += " AND " + CallLog.Calls._ID + " IN (" + TextUtils.join(",", callIds)
+                    + ")";
+        }
+
         return getContentResolver().query(
                 CallLog.Calls.CONTENT_URI,
-                MissedCallsQuery.PROJECTION,
-                CallLog.Calls.TYPE + "=" + CallLog.Calls.MISSED_TYPE + " AND "
-                        + CallLog.Calls.NEW + "!=0",
+                projection,
+                selection,
                 null,
                 null);
     }
 
+    private static class MissedCall {
+        String cachedName;
+        String number;
+    }
+
+    private interface MissedCallIdsQuery {
+        String[] PROJECTION = {
+                CallLog.Calls._ID,
+                CallLog.Calls.CACHED_NAME,
+        };
+
+        int ID = 0;
+        int CACHED_NAME = 1;
+    }
+
     private interface MissedCallsQuery {
         String[] PROJECTION = {
                 CallLog.Calls._ID,
@@ -24,16 +24,31 @@ import net.nurik.roman.dashclock.R;
 
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
-import android.provider.ContactsContract;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
 /**
  * Unread SMS and MMS's extension.
  */
 public class SmsExtension extends DashClockExtension {
     private static final String TAG = LogUtils.makeLogTag(SmsExtension.class);
 
+    /**
+     * The conversations found unread by the last update, by thread ID, with their senders
+     * already resolved.
+     */
+    private final Map<Long, UnreadConversation> mUnreadConversations
+            = new HashMap<Long, UnreadConversation>();
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -46,61 +61,107 @@ public class SmsExtension extends DashClockExtension {
 
     @Override
     protected void onUpdateData(int reason) {
-        int unreadConversations = 0;
-        StringBuilder names = new StringBuilder();
-        Cursor cursor = openMmsSmsCursor();
-        long threadId = 0;
+        ContactNameResolver resolver = ContactNameResolver.getInstance(this);
+        int resolverQueryCount = resolver.getQueryCount();
+        int queryCount = 1;
+        int rowsScanned = 0;
 
+        // First find the latest unread message in each thread, and only look further into
+        // threads whose latest unread message has changed since the last update.
+        List<UnreadConversation> conversations = new ArrayList<UnreadConversation>();
+        Map<Long, UnreadConversation> changedConversations
+                = new HashMap<Long, UnreadConversation>();
+        Cursor cursor = openMmsSmsCursor(UnreadStateQuery.PROJECTION, null);
         while (cursor.moveToNext()) {
-            ++unreadConversations;
-
-            // Get display name. SMS's are easy; MMS's not so much.
-            long id = cursor.getLong(MmsSmsQuery._ID);
-            long contactId = cursor.getLong(MmsSmsQuery.PERSON);
-            String address = cursor.getString(MmsSmsQuery.ADDRESS);
-            threadId = cursor.getLong(MmsSmsQuery.THREAD_ID);
-
-            if (contactId == 0 && TextUtils.isEmpty(address) && id != 0) {
-                // Try MMS addr query
-                Cursor addrCursor = openMmsAddrCursor(id);
-                if (addrCursor.moveToFirst()) {
-                    contactId = addrCursor.getLong(MmsAddrQuery.CONTACT_ID);
-                    address = addrCursor.getString(MmsAddrQuery.ADDRESS);
-                }
-                addrCursor.close();
+            ++rowsScanned;
+            long threadId = cursor.getLong(UnreadStateQuery.THREAD_ID);
+            long messageId = cursor.getLong(UnreadStateQuery._ID);
+            long date = cursor.getLong(UnreadStateQuery.DATE);
+            UnreadConversation conversation = mUnreadConversations.get(threadId);
+            if (conversation == null || conversation.messageId != messageId
+                    || conversation.date != date) {
+                conversation = new UnreadConversation();
+                conversation.threadId = threadId;
+                changedConversations.put(threadId, conversation);
             }
+            conversations.add(conversation);
+        }
+        cursor.close();
 
-            String displayName = address;
+        if (changedConversations.isEmpty()
+                && conversations.size() == mUnreadConversations.size()
+                && reason == UPDATE_REASON_CONTENT_CHANGED) {
+            // E.g. a message was sent, or one already unread was marked as seen.
+            LOGD(TAG, "Unread conversations unchanged; scanned " + rowsScanned + " rows.");
+            return;
+        }
 
-            if (contactId > 0) {
-                Cursor contactCursor = openContactsCursorById(contactId);
-                if (contactCursor.moveToFirst()) {
-                    displayName = contactCursor.getString(RawContactsQuery.DISPLAY_NAME);
-                } else {
-                    contactId = 0;
+        List<UnreadConversation> needAddresses = new ArrayList<UnreadConversation>();
+        if (!changedConversations.isEmpty()) {
+            cursor = openMmsSmsCursor(MmsSmsQuery.PROJECTION, changedConversations.keySet());
+            ++queryCount;
+            while (cursor.moveToNext()) {
+                ++rowsScanned;
+                UnreadConversation conversation = changedConversations.get(
+                        cursor.getLong(MmsSmsQuery.THREAD_ID));
+                if (conversation == null) {
+                    continue;
                 }
-                contactCursor.close();
-            }
 
-            if (contactId <= 0) {
-                Cursor contactCursor = tryOpenContactsCursorByAddress(address);
-                if (contactCursor != null) {
-                    if (contactCursor.moveToFirst()) {
-                        displayName = contactCursor.getString(ContactsQuery.DISPLAY_NAME);
-                    }
-                    contactCursor.close();
+                conversation.messageId = cursor.getLong(MmsSmsQuery._ID);
+                conversation.date = cursor.getLong(MmsSmsQuery.DATE);
+                conversation.contactId = cursor.getLong(MmsSmsQuery.PERSON);
+                conversation.address = cursor.getString(MmsSmsQuery.ADDRESS);
+                conversation.loaded = true;
+
+                // Get the sender. SMS's are easy; MMS's not so much.
+                if (conversation.contactId == 0 && TextUtils.isEmpty(conversation.address)
+                        && conversation.messageId != 0) {
+                    needAddresses.add(conversation);
                 }
             }
+            cursor.close();
+        }
+
+        // The MMS provider only exposes addr rows per message, so these can't be batched.
+        // Only conversations that changed since the last update get here.
+        for (UnreadConversation conversation : needAddresses) {
+            Cursor addrCursor = openMmsAddrCursor(conversation.messageId);
+            ++queryCount;
+            if (addrCursor.moveToFirst()) {
+                conversation.contactId = addrCursor.getLong(MmsAddrQuery.CONTACT_ID);
+                conversation.address = addrCursor.getString(MmsAddrQuery.ADDRESS);
+            }
+            addrCursor.close();
+        }
+
+        mUnreadConversations.clear();
+        for (Iterator<UnreadConversation> it = conversations.iterator(); it.hasNext(); ) {
+            UnreadConversation conversation = it.next();
+            if (!conversation.loaded) {
+                // Read between the two queries above.
+                it.remove();
+                continue;
+            }
+            mUnreadConversations.put(conversation.threadId, conversation);
+        }
 
+        int unreadConversations = conversations.size();
+        StringBuilder names = new StringBuilder();
+        for (String displayName : resolveDisplayNames(resolver, conversations)) {
             if (names.length() > 0) {
                 names.append(", ");
             }
             names.append(displayName);
         }
-        cursor.close();
+
+        LOGD(TAG, "Resolved " + unreadConversations + " unread conversations with "
+                + (queryCount + resolver.getQueryCount() - resolverQueryCount)
+                + " queries; scanned " + rowsScanned + " rows.");
 
         Intent clickIntent;
-        if (unreadConversations == 1 && threadId > 0) {
+        long threadId = (unreadConversations == 1) ? conversations.get(0).threadId : 0;
+        if (threadId > 0) {
             clickIntent = new Intent(Intent.ACTION_VIEW,
                     TelephonyProviderConstants.MmsSms.CONTENT_CONVERSATIONS_URI.buildUpon()
                             .appendPath(Long.toString(threadId)).build());
@@ -122,16 +183,26 @@ public class SmsExtension extends DashClockExtension {
     }
 
 
-    private Cursor openMmsSmsCursor() {
+    /**
+     * Opens a cursor over the latest unread message in each thread, optionally limited to the
+     * given threads.
+     */
+    private Cursor openMmsSmsCursor(String[] projection, Collection<Long> threadIds) {
+        String selection = TelephonyProviderConstants.Mms.READ + "=0 AND "
+                + TelephonyProviderConstants.Mms.THREAD_ID + "!=0 AND ("
+                + TelephonyProviderConstants.Mms.MESSAGE_BOX + "="
+                + TelephonyProviderConstants.Mms.MESSAGE_BOX_INBOX + " OR "
+                + TelephonyProviderConstants.Sms.TYPE + "="
+                + TelephonyProviderConstants.Sms.MESSAGE_TYPE_INBOX + ")";
+        if (threadIds != null) {
+            selection += " AND " + TelephonyProviderConstants.Mms.THREAD_ID + " IN ("
+                    + TextUtils.join(",", threadIds) + ")";
+        }
+
         return getContentResolver().query(
                 TelephonyProviderConstants.MmsSms.CONTENT_CONVERSATIONS_URI,
-                MmsSmsQuery.PROJECTION,
-                TelephonyProviderConstants.Mms.READ + "=0 AND "
-                        + TelephonyProviderConstants.Mms.THREAD_ID + "!=0 AND ("
-                        + TelephonyProviderConstants.Mms.MESSAGE_BOX + "="
-                        + TelephonyProviderConstants.Mms.MESSAGE_BOX_INBOX + " OR "
-                        + TelephonyProviderConstants.Sms.TYPE + "="
-                        + TelephonyProviderConstants.Sms.MESSAGE_TYPE_INBOX + ")",
+                projection,
+                selection,
                 null,
                 null);
     }
@@ -148,32 +219,64 @@ public class SmsExtension extends DashClockExtension {
                 null);
     }
 
-    private Cursor openContactsCursorById(long contactId) {
-        return getContentResolver().query(
-                ContactsContract.RawContacts.CONTENT_URI.buildUpon()
-                        .appendPath(Long.toString(contactId))
-                        .build(),
-                RawContactsQuery.PROJECTION,
-                null,
-                null,
-                null);
-    }
+    /**
+     * Returns a display name for each of the given conversations, in order, looking up all of
+     * their contacts with as few queries as possible. Conversations whose sender isn't a known
+     * contact are shown by address.
+     */
+    private static List<String> resolveDisplayNames(ContactNameResolver resolver,
+            List<UnreadConversation> conversations) {
+        List<Long> contactIds = new ArrayList<Long>();
+        for (UnreadConversation conversation : conversations) {
+            if (conversation.contactId > 0) {
+                contactIds.add(conversation.contactId);
+            }
+        }
+
+        Map<Long, String> namesById = resolver.getDisplayNamesForRawContacts(contactIds);
+
+        List<String> addresses = new ArrayList<String>();
+        for (UnreadConversation conversation : conversations) {
+            if (!namesById.containsKey(conversation.contactId)
+                    && !TextUtils.isEmpty(conversation.address)) {
+                addresses.add(conversation.address);
+            }
+        }
+
+        Map<String, String> namesByAddress = addresses.isEmpty()
+                ? Collections.<String, String>emptyMap()
+                : resolver.getDisplayNamesForNumbers(addresses);
 
-    private Cursor tryOpenContactsCursorByAddress(String phoneNumber) {
-        try {
-            return getContentResolver().query(
-                    ContactsContract.PhoneLookup.CONTENT_FILTER_URI.buildUpon()
-                            .appendPath(Uri.encode(phoneNumber)).build(),
-                    ContactsQuery.PROJECTION,
-                    null,
-                    null,
-                    null);
-        } catch (IllegalArgumentException e) {
-            // Can be called by the content provider (from Google Play crash/ANR console)
-            // java.lang.IllegalArgumentException: URI: content://com.android.contacts/phone_lookup/
-            LogUtils.LOGW(TAG, "Error looking up contact name", e);
-            return null;
+        List<String> displayNames = new ArrayList<String>(conversations.size());
+        for (UnreadConversation conversation : conversations) {
+            String displayName = namesById.get(conversation.contactId);
+            if (displayName == null) {
+                displayName = namesByAddress.get(conversation.address);
+            }
+            displayNames.add((displayName != null) ? displayName : conversation.address);
         }
+        return displayNames;
+    }
+
+    private static class UnreadConversation {
+        long messageId;
+        long date;
+        long threadId;
+        long contactId;
+        String address;
+        boolean loaded;
+    }
+
+    private interface UnreadStateQuery {
+        String[] PROJECTION = {
+                TelephonyProviderConstants.Sms._ID,
+                TelephonyProviderConstants.Sms.THREAD_ID,
+                TelephonyProviderConstants.Sms.DATE,
+        };
+
+        int _ID = 0;
+        int THREAD_ID = 1;
+        int DATE = 2;
     }
 
     private interface MmsSmsQuery {
@@ -182,12 +285,14 @@ public class SmsExtension extends DashClockExtension {
                 TelephonyProviderConstants.Sms.ADDRESS,
                 TelephonyProviderConstants.Sms.PERSON,
                 TelephonyProviderConstants.Sms.THREAD_ID,
+                TelephonyProviderConstants.Sms.DATE,
         };
 
         int _ID = 0;
         int ADDRESS = 1;
         int PERSON = 2;
         int THREAD_ID = 3;
+        int DATE = 4;
     }
 
     private interface MmsAddrQuery {
@@ -199,20 +304,4 @@ public class SmsExtension extends DashClockExtension {
         int ADDRESS = 0;
         int CONTACT_ID = 1;
     }
-
-    private interface RawContactsQuery {
-        String[] PROJECTION = {
-                ContactsContract.RawContacts.DISPLAY_NAME_PRIMARY,
-        };
-
-        int DISPLAY_NAME = 0;
-    }
-
-    private interface ContactsQuery {
-        String[] PROJECTION = {
-                ContactsContract.Contacts.DISPLAY_NAME,
-        };
-
-        int DISPLAY_NAME = 0;
-    }
 }
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.dashclock.weather.engine;
+
+import com.google.android.apps.dashclock.api.CachingDashClockExtension;
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Locale;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGW;
+
+/**
+ * A local weather and forecast extension, built on {@link WeatherEngine}. Subclasses pick the
+ * {@link WeatherProvider} and click intent; finding the device's location, scheduling fetches and
+ * rendering are shared.
+ *
+ * <p>
+ * Rendering uses the <code>status_none</code>, <code>temperature_template</code>,
+ * <code>weather_expanded_title_template</code>, <code>later_forecast_template</code>,
+ * <code>observed_at_template</code>, <code>forecast_only</code> and <code>no_weather_data</code>
+ * strings and the <code>ic_weather_*</code> drawables, which apps can override.
+ */
+public abstract class BaseWeatherExtension extends CachingDashClockExtension {
+    private static final String TAG = LogUtils.makeLogTag(BaseWeatherExtension.class);
+
+    public static final String PREF_WEATHER_UNITS = "pref_weather_units";
+
+    private static final long STALE_LOCATION_NANOS = 10l * 60000000000l; // 10 minutes
+
+    // While the passive location listener is active, other apps' fixes would have told us about
+    // significant movement, so older fixes can still be trusted.
+    private static final long PASSIVE_STALE_LOCATION_NANOS = 2l * 3600000000000l; // 2 hours
+
+    private static final long PASSIVE_MIN_TIME_MILLIS = 60 * 1000; // 1 minute
+    private static final float PASSIVE_MIN_DISTANCE_METERS = 500;
+
+    // Refetch weather outside of the usual schedule once the device has moved this far from
+    // where the weather was last fetched for.
+    private static final float REFRESH_DISTANCE_METERS = 5000;
+
+    private static final long WEATHER_CACHE_TTL_MILLIS = 30 * 60 * 1000; // 30 minutes
+
+    private static final Criteria sLocationCriteria;
+
+    private volatile String mWeatherUnits = "f";
+    private volatile Intent mClickIntent;
+
+    private WeatherEngine mWeatherEngine;
+
+    private boolean mOneTimeLocationListenerActive = false;
+    private UpdateRequest mLocationUpdateRequest;
+
+    private boolean mPassiveLocationListenerActive = false;
+    private volatile Location mLastPassiveLocation;
+    private volatile Location mLastWeatherLocation;
+    private int mActiveLocationRequestCount = 0;
+    private int mActiveLocationRequestsAvoided = 0;
+
+    static {
+        sLocationCriteria = new Criteria();
+        sLocationCriteria.setPowerRequirement(Criteria.POWER_LOW);
+        sLocationCriteria.setAccuracy(Criteria.ACCURACY_COARSE);
+        sLocationCriteria.setCostAllowed(false);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mWeatherEngine = new WeatherEngine(this, onCreateWeatherProvider());
+        enablePassiveLocationListener();
+    }
+
+    /**
+     * Returns the provider to get weather from. The default is {@link YahooWeatherProvider}.
+     */
+    protected WeatherProvider onCreateWeatherProvider() {
+        return new YahooWeatherProvider();
+    }
+
+    /**
+     * Returns the intent to launch when the extension is clicked, given the extension's
+     * preferences. The default is none.
+     */
+    protected Intent getClickIntent(SharedPreferences sp) {
+        return null;
+    }
+
+    @Override
+    protected long getCacheTtlMillis(int reason) {
+        switch (reason) {
+            case UPDATE_REASON_INITIAL:
+            case UPDATE_REASON_PERIODIC:
+            case UPDATE_REASON_SCREEN_ON:
+            case UPDATE_REASON_UNKNOWN:
+                return WEATHER_CACHE_TTL_MILLIS;
+        }
+
+        // Settings such as units may have changed; always fetch fresh data.
+        return 0;
+    }
+
+    @Override
+    protected void onRefreshData(UpdateRequest request) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        mWeatherUnits = sp.getString(PREF_WEATHER_UNITS, mWeatherUnits);
+        mClickIntent = getClickIntent(sp);
+
+        NetworkInfo ni = ((ConnectivityManager) getSystemService(
+                Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
+        if (ni == null || !ni.isConnected()) {
+            request.finish();
+            return;
+        }
+
+        LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        String provider = lm.getBestProvider(sLocationCriteria, true);
+        if (TextUtils.isEmpty(provider)) {
+            LOGE(TAG, "No available location providers matching criteria.");
+            request.finish();
+            return;
+        }
+
+        Location lastLocation = lm.getLastKnownLocation(provider);
+        Location passiveLocation = mLastPassiveLocation;
+        if (lastLocation == null || (passiveLocation != null
+                && passiveLocation.getElapsedRealtimeNanos()
+                        > lastLocation.getElapsedRealtimeNanos())) {
+            lastLocation = passiveLocation;
+        }
+
+        long locationAgeNanos = (lastLocation != null)
+                ? SystemClock.elapsedRealtimeNanos() - lastLocation.getElapsedRealtimeNanos()
+                : Long.MAX_VALUE;
+        if (locationAgeNanos < STALE_LOCATION_NANOS) {
+            getWeatherAndTryPublishUpdate(request, lastLocation);
+
+        } else if (mPassiveLocationListenerActive
+                && locationAgeNanos < PASSIVE_STALE_LOCATION_NANOS) {
+            ++mActiveLocationRequestsAvoided;
+            LOGD(TAG, "Using passively known location; " + mActiveLocationRequestsAvoided
+                    + " active location requests avoided, " + mActiveLocationRequestCount
+                    + " made.");
+            getWeatherAndTryPublishUpdate(request, lastLocation);
+
+        } else {
+            LOGW(TAG, "Stale or missing last-known location; requesting single coarse location "
+                    + "update.");
+            ++mActiveLocationRequestCount;
+            disableOneTimeLocationListener();
+            mOneTimeLocationListenerActive = true;
+            mLocationUpdateRequest = request;
+            lm.requestSingleUpdate(provider, mOneTimeLocationListener, null);
+        }
+    }
+
+    private void enablePassiveLocationListener() {
+        // The passive provider needs fine location access, which these apps don't ask for; only
+        // listen if it happens to be granted. Otherwise, refreshes keep requesting coarse
+        // locations from the network provider whenever the last known one is stale.
+        if (checkPermission(Manifest.permission.ACCESS_FINE_LOCATION, Process.myPid(),
+                Process.myUid()) != PackageManager.PERMISSION_GRANTED) {
+            LOGD(TAG, "No fine location access; not listening for passive location updates.");
+            return;
+        }
+
+        LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        try {
+            lm.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_MIN_TIME_MILLIS,
+                    PASSIVE_MIN_DISTANCE_METERS, mPassiveLocationListener);
+            mPassiveLocationListenerActive = true;
+        } catch (SecurityException e) {
+            LOGW(TAG, "Couldn't listen for passive location updates.", e);
+        } catch (IllegalArgumentException e) {
+            LOGW(TAG, "Couldn't listen for passive location updates.", e);
+        }
+    }
+
+    private void disablePassiveLocationListener() {
+        if (mPassiveLocationListenerActive) {
+            LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+            lm.removeUpdates(mPassiveLocationListener);
+            mPassiveLocationListenerActive = false;
+        }
+    }
+
+    private void disableOneTimeLocationListener() {
+        if (mOneTimeLocationListenerActive) {
+            LocationManager lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+            lm.removeUpdates(mOneTimeLocationListener);
+            mOneTimeLocationListenerActive = false;
+        }
+
+        if (mLocationUpdateRequest != null) {
+            // Superseded or abandoned; there's nothing new to show for it.
+            mLocationUpdateRequest.finish();
+            mLocationUpdateRequest = null;
+        }
+    }
+
+    private LocationListener mOneTimeLocationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            UpdateRequest request = mLocationUpdateRequest;
+            mLocationUpdateRequest = null;
+            disableOneTimeLocationListener();
+            if (request != null) {
+                getWeatherAndTryPublishUpdate(request, location);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String s, int i, Bundle bundle) {
+        }
+
+        @Override
+        public void onProviderEnabled(String s) {
+        }
+
+        @Override
+        public void onProviderDisabled(String s) {
+        }
+    };
+
+    private LocationListener mPassiveLocationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            mLastPassiveLocation = location;
+
+            Location weatherLocation = mLastWeatherLocation;
+            if (weatherLocation == null
+                    || weatherLocation.distanceTo(location) < REFRESH_DISTANCE_METERS) {
+                return;
+            }
+
+            LOGD(TAG, "Moved " + (int) weatherLocation.distanceTo(location)
+                    + "m since weather was fetched; refreshing.");
+            // Set now, so that further fixes don't start overlapping refreshes.
+            mLastWeatherLocation = location;
+            getWeatherAndTryPublishUpdate(null, location);
+        }
+
+        @Override
+        public void onStatusChanged(String s, int i, Bundle bundle) {
+        }
+
+        @Override
+        public void onProviderEnabled(String s) {
+        }
+
+        @Override
+        public void onProviderDisabled(String s) {
+        }
+    };
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        disableOneTimeLocationListener();
+        disablePassiveLocationListener();
+    }
+
+    /**
+     * Fetches weather for the given location and publishes it. The request may be null for
+     * refreshes that the extension starts on its own.
+     */
+    private void getWeatherAndTryPublishUpdate(final UpdateRequest request,
+            final Location location) {
+        // Network requests run on the update executor to keep the update thread responsive.
+        getUpdateExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != null && request.isCancelled()) {
+                    request.finish();
+                    return;
+                }
+
+                try {
+                    // Routine refreshes can be served from the stored forecast.
+                    boolean allowStored = request != null
+                            && getCacheTtlMillis(request.getReason()) > 0;
+                    WeatherData weatherData = mWeatherEngine.getWeather(location, mWeatherUnits,
+                            allowStored);
+                    mLastWeatherLocation = location;
+                    if (request != null) {
+                        request.finish(renderExtensionData(weatherData));
+                    } else {
+                        publishUpdate(renderExtensionData(weatherData));
+                    }
+                } catch (InvalidLocationException e) {
+                    LOGW(TAG, "Could not determine a valid location for weather.", e);
+                } catch (IOException e) {
+                    LOGW(TAG, "Generic read error while retrieving weather information.", e);
+                } finally {
+                    if (request != null) {
+                        request.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private ExtensionData renderExtensionData(WeatherData weatherData) {
+        ExtensionData extensionData = new ExtensionData();
+        if (weatherData == null) {
+            extensionData
+                    .icon(R.drawable.ic_weather_clear)
+                    .status(getString(R.string.status_none))
+                    .expandedBody(getString(R.string.no_weather_data));
+        } else {
+            String temperature = weatherData.hasValidTemperature()
+                    ? getString(R.string.temperature_template, weatherData.temperature)
+                    : getString(R.string.status_none);
+            StringBuilder expandedBody = new StringBuilder();
+
+            int conditionIconId = WeatherData.getConditionIconId(weatherData.conditionCode);
+            if (WeatherData.getConditionIconId(weatherData.todayForecastConditionCode)
+                    == R.drawable.ic_weather_raining) {
+                // Show rain if it will rain today.
+                conditionIconId = R.drawable.ic_weather_raining;
+                expandedBody.append(
+                        getString(R.string.later_forecast_template, weatherData.forecastText));
+            }
+
+            if (expandedBody.length() > 0) {
+                expandedBody.append("\n");
+            }
+            expandedBody.append(weatherData.location);
+
+            // Data reused from an earlier fetch isn't shown as if it were live.
+            if (weatherData.forecastOnly) {
+                expandedBody.append("\n").append(getString(R.string.forecast_only));
+            } else if (System.currentTimeMillis() - weatherData.observedAt
+                    >= WEATHER_CACHE_TTL_MILLIS) {
+                expandedBody.append("\n").append(getString(R.string.observed_at_template,
+                        DateFormat.getTimeFormat(this).format(
+                                new Date(weatherData.observedAt))));
+            }
+
+            extensionData
+                    .status(temperature)
+                    .expandedTitle(getString(R.string.weather_expanded_title_template,
+                            temperature + mWeatherUnits.toUpperCase(Locale.US),
+                            weatherData.conditionText))
+                    .icon(conditionIconId)
+                    .expandedBody(expandedBody.toString());
+        }
+
+        return extensionData
+                .visible(true)
+                .clickIntent(mClickIntent);
+    }
+}
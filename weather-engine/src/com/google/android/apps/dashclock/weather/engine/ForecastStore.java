@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.weather.engine;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.text.TextUtils;
+
+import java.util.Calendar;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGE;
+
+/**
+ * A persistent store of the most recently fetched weather feed, including every forecast day, for
+ * use with {@link WeatherEngine}. Refreshes near the same location are answered from the store:
+ * today's forecast is picked by date (so it rolls over at midnight) and conditions switch between
+ * their day and night variants at sunrise and sunset.
+ *
+ * <p>
+ * Stored current conditions are only reused for a few hours, and are marked with the time they
+ * were observed. After that, and for up to a day, the store can still answer with data derived
+ * from today's forecast alone, which is marked as such.
+ */
+class ForecastStore {
+    private static final String TAG = LogUtils.makeLogTag(ForecastStore.class);
+
+    private static final String PREFS_NAME = "weather_forecast";
+    private static final String PREF_FORECAST = "forecast";
+
+    // How long stored current conditions (temperature and condition) are reused for. Several
+    // times the weather extensions' refresh interval, so that most routine refreshes at the
+    // same place don't need the network.
+    private static final long CURRENT_CONDITIONS_TTL_MILLIS = 2 * 60 * 60 * 1000; // 2 hours
+
+    // How long the stored forecast days are reused for, e.g. when fetching fails.
+    private static final long TTL_MILLIS = 24 * 60 * 60 * 1000; // 1 day
+    private static final float DISTANCE_THRESHOLD_METERS = 5000;
+
+    private static final String KEY_LATITUDE = "lat";
+    private static final String KEY_LONGITUDE = "lon";
+    private static final String KEY_UNITS = "units";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_TEMPERATURE = "temp";
+    private static final String KEY_CONDITION_CODE = "code";
+    private static final String KEY_CONDITION_TEXT = "text";
+    private static final String KEY_SUNRISE = "sunrise";
+    private static final String KEY_SUNSET = "sunset";
+    // Each day is stored as [date, low, high, code, text].
+    private static final String KEY_DAYS = "days";
+
+    private final SharedPreferences mPreferences;
+    private JSONObject mForecast;
+    private boolean mLoaded = false;
+    private int mLocalCount = 0;
+    private int mNetworkCount = 0;
+
+    ForecastStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    /**
+     * Returns weather data for the given time derived from the stored forecast, or null if the
+     * stored forecast is too old, for a different location or units, or doesn't cover today.
+     *
+     * @param allowForecastOnly Whether data derived from today's forecast alone may be returned
+     *                          once the stored current conditions are too old. Such data has no
+     *                          temperature and has {@link WeatherData#forecastOnly} set.
+     */
+    synchronized WeatherData get(Location location, String units, long now,
+            boolean allowForecastOnly) {
+        load();
+        if (mForecast == null
+                || !TextUtils.equals(units, mForecast.optString(KEY_UNITS, null))) {
+            return null;
+        }
+
+        long observedAt = mForecast.optLong(KEY_TIME);
+        long age = now - observedAt;
+        boolean forecastOnly = age >= CURRENT_CONDITIONS_TTL_MILLIS;
+        if (age < 0 || age >= TTL_MILLIS || (forecastOnly && !allowForecastOnly)) {
+            return null;
+        }
+
+        float[] distance = new float[1];
+        Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                mForecast.optDouble(KEY_LATITUDE), mForecast.optDouble(KEY_LONGITUDE),
+                distance);
+        if (distance[0] >= DISTANCE_THRESHOLD_METERS) {
+            return null;
+        }
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        int today = cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100
+                + cal.get(Calendar.DAY_OF_MONTH);
+
+        WeatherData data = new WeatherData();
+        JSONArray days = mForecast.optJSONArray(KEY_DAYS);
+        for (int i = 0; days != null && i < days.length(); i++) {
+            JSONArray day = days.optJSONArray(i);
+            if (day == null || day.optInt(0) < today) {
+                continue;
+            }
+
+            WeatherData.DayForecast forecast = new WeatherData.DayForecast();
+            forecast.date = day.optInt(0);
+            forecast.low = day.optInt(1, WeatherData.INVALID_TEMPERATURE);
+            forecast.high = day.optInt(2, WeatherData.INVALID_TEMPERATURE);
+            forecast.conditionCode = day.optInt(3, WeatherData.INVALID_CONDITION);
+            forecast.text = day.optString(4, null);
+            data.forecasts.add(forecast);
+        }
+
+        if (data.forecasts.isEmpty() || data.forecasts.get(0).date != today) {
+            // Beyond the forecast horizon.
+            return null;
+        }
+
+        if (forecastOnly) {
+            data.forecastOnly = true;
+            data.conditionCode = data.forecasts.get(0).conditionCode;
+            data.conditionText = data.forecasts.get(0).text;
+        } else {
+            data.observedAt = observedAt;
+            data.temperature = mForecast.optInt(KEY_TEMPERATURE,
+                    WeatherData.INVALID_TEMPERATURE);
+            data.conditionCode = mForecast.optInt(KEY_CONDITION_CODE,
+                    WeatherData.INVALID_CONDITION);
+            data.conditionText = mForecast.optString(KEY_CONDITION_TEXT, null);
+        }
+        data.location = mForecast.optString(KEY_LOCATION, null);
+        data.todayForecastConditionCode = data.forecasts.get(0).conditionCode;
+        data.forecastText = data.forecasts.get(0).text;
+        data.sunriseMinutes = mForecast.optInt(KEY_SUNRISE, WeatherData.INVALID_TIME_OF_DAY);
+        data.sunsetMinutes = mForecast.optInt(KEY_SUNSET, WeatherData.INVALID_TIME_OF_DAY);
+
+        if (data.sunriseMinutes != WeatherData.INVALID_TIME_OF_DAY
+                && data.sunsetMinutes != WeatherData.INVALID_TIME_OF_DAY) {
+            int minutes = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+            data.applyTimeOfDay(minutes < data.sunriseMinutes || minutes >= data.sunsetMinutes);
+        }
+
+        ++mLocalCount;
+        LOGD(TAG, "Weather served from local " + (forecastOnly ? "forecast" : "conditions")
+                + " (" + mLocalCount + " local, "
+                + mNetworkCount + " network; " + HttpUtils.getRequestCount()
+                + " HTTP requests in total).");
+        return data;
+    }
+
+    /**
+     * Stores freshly fetched weather data for the given location and units.
+     */
+    synchronized void put(Location location, String units, WeatherData data) {
+        ++mNetworkCount;
+        try {
+            JSONArray days = new JSONArray();
+            for (WeatherData.DayForecast forecast : data.forecasts) {
+                if (forecast.date == 0) {
+                    continue;
+                }
+
+                JSONArray day = new JSONArray();
+                day.put(forecast.date);
+                day.put(forecast.low);
+                day.put(forecast.high);
+                day.put(forecast.conditionCode);
+                day.put(forecast.text);
+                days.put(day);
+            }
+
+            JSONObject forecast = new JSONObject();
+            forecast.put(KEY_LATITUDE, location.getLatitude());
+            forecast.put(KEY_LONGITUDE, location.getLongitude());
+            forecast.put(KEY_UNITS, units);
+            forecast.put(KEY_TIME, data.observedAt);
+            forecast.put(KEY_LOCATION, data.location);
+            forecast.put(KEY_TEMPERATURE, data.temperature);
+            forecast.put(KEY_CONDITION_CODE, data.conditionCode);
+            forecast.put(KEY_CONDITION_TEXT, data.conditionText);
+            forecast.put(KEY_SUNRISE, data.sunriseMinutes);
+            forecast.put(KEY_SUNSET, data.sunsetMinutes);
+            forecast.put(KEY_DAYS, days);
+
+            mForecast = forecast;
+            mLoaded = true;
+            mPreferences.edit().putString(PREF_FORECAST, forecast.toString()).apply();
+        } catch (JSONException e) {
+            LOGE(TAG, "Error storing forecast.", e);
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+        String val = mPreferences.getString(PREF_FORECAST, null);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                mForecast = (JSONObject) new JSONTokener(val).nextValue();
+            } catch (JSONException e) {
+                LOGE(TAG, "Error loading forecast.", e);
+            } catch (ClassCastException e) {
+                LOGE(TAG, "Error loading forecast.", e);
+            }
+        }
+    }
+}
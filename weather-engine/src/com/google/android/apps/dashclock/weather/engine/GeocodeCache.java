@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.weather.engine;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.text.TextUtils;
+
+import java.util.Iterator;
+import java.util.Locale;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGE;
+
+/**
+ * A persistent cache of resolved locations (place IDs and town names), for use with
+ * {@link WeatherEngine}. Entries are keyed by a quantized latitude/longitude cell, and are
+ * reused for any location in the same cell or within {@link #DISTANCE_THRESHOLD_METERS} of the
+ * location they were resolved for. This saves the reverse geocoding and place ID lookups on most
+ * weather refreshes.
+ */
+class GeocodeCache {
+    private static final String TAG = LogUtils.makeLogTag(GeocodeCache.class);
+
+    private static final String PREFS_NAME = "weather_geocode_cache";
+    private static final String PREF_ENTRIES = "entries";
+
+    /**
+     * Size of a cache cell, in degrees. 0.05 degrees of latitude is roughly 5.5 km.
+     */
+    private static final double CELL_DEGREES = 0.05;
+    private static final float DISTANCE_THRESHOLD_METERS = 5000;
+    private static final long TTL_MILLIS = 7 * 24 * 60 * 60 * 1000L; // 1 week
+    private static final int MAX_ENTRIES = 8;
+
+    private static final String KEY_LATITUDE = "lat";
+    private static final String KEY_LONGITUDE = "lon";
+    private static final String KEY_PLACE_IDS = "woeids";
+    private static final String KEY_TOWN = "town";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_PREFERRED_PLACE_ID = "preferred_woeid";
+
+    private final SharedPreferences mPreferences;
+    private JSONObject mEntries;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    GeocodeCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    /**
+     * Returns the cached resolution for the given location, or null if there isn't a fresh one
+     * nearby.
+     */
+    synchronized LocationInfo get(Location location) {
+        JSONObject entry = findEntry(location);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+
+        LocationInfo li = new LocationInfo();
+        JSONArray placeIds = entry.optJSONArray(KEY_PLACE_IDS);
+        if (placeIds != null) {
+            for (int i = 0; i < placeIds.length(); i++) {
+                String placeId = placeIds.optString(i);
+                if (!TextUtils.isEmpty(placeId)) {
+                    li.placeIds.add(placeId);
+                }
+            }
+        }
+
+        if (li.placeIds.isEmpty()) {
+            ++mMissCount;
+            return null;
+        }
+
+        li.town = entry.optString(KEY_TOWN, null);
+        li.preferredPlaceId = entry.optString(KEY_PREFERRED_PLACE_ID, null);
+        ++mHitCount;
+        LOGD(TAG, "Geocode cache hit (" + mHitCount + " hits, " + mMissCount + " misses).");
+        return li;
+    }
+
+    /**
+     * Caches the resolution for the given location, evicting the oldest entries if the cache is
+     * full.
+     */
+    synchronized void put(Location location, LocationInfo li) {
+        loadEntries();
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(KEY_LATITUDE, location.getLatitude());
+            entry.put(KEY_LONGITUDE, location.getLongitude());
+            entry.put(KEY_PLACE_IDS, new JSONArray(li.placeIds));
+            entry.put(KEY_TOWN, li.town);
+            entry.put(KEY_TIME, System.currentTimeMillis());
+            mEntries.put(getCellKey(location), entry);
+
+            while (mEntries.length() > MAX_ENTRIES) {
+                String oldestKey = null;
+                long oldestTime = Long.MAX_VALUE;
+                Iterator<?> it = mEntries.keys();
+                while (it.hasNext()) {
+                    String key = (String) it.next();
+                    JSONObject candidate = mEntries.optJSONObject(key);
+                    long time = (candidate != null) ? candidate.optLong(KEY_TIME) : 0;
+                    if (time < oldestTime) {
+                        oldestTime = time;
+                        oldestKey = key;
+                    }
+                }
+                mEntries.remove(oldestKey);
+            }
+
+            mPreferences.edit().putString(PREF_ENTRIES, mEntries.toString()).apply();
+        } catch (JSONException e) {
+            LOGE(TAG, "Error storing geocode cache entry.", e);
+        }
+    }
+
+    /**
+     * Remembers the place ID that yielded weather data for the given location, so that later
+     * refreshes can try it first.
+     */
+    synchronized void setPreferredPlaceId(Location location, String placeId) {
+        JSONObject entry = findEntry(location);
+        if (entry == null
+                || TextUtils.equals(placeId, entry.optString(KEY_PREFERRED_PLACE_ID, null))) {
+            return;
+        }
+
+        try {
+            entry.put(KEY_PREFERRED_PLACE_ID, placeId);
+            mPreferences.edit().putString(PREF_ENTRIES, mEntries.toString()).apply();
+        } catch (JSONException e) {
+            LOGE(TAG, "Error storing preferred place ID.", e);
+        }
+    }
+
+    /**
+     * Returns the fresh entry for the given location's cell, or failing that, a fresh entry
+     * resolved nearby.
+     */
+    private JSONObject findEntry(Location location) {
+        loadEntries();
+        long now = System.currentTimeMillis();
+
+        JSONObject entry = mEntries.optJSONObject(getCellKey(location));
+        if (entry != null && now - entry.optLong(KEY_TIME) < TTL_MILLIS) {
+            return entry;
+        }
+
+        // Look for a nearby entry in a neighboring cell.
+        float[] distance = new float[1];
+        Iterator<?> it = mEntries.keys();
+        while (it.hasNext()) {
+            JSONObject candidate = mEntries.optJSONObject((String) it.next());
+            if (candidate == null || now - candidate.optLong(KEY_TIME) >= TTL_MILLIS) {
+                continue;
+            }
+
+            Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                    candidate.optDouble(KEY_LATITUDE), candidate.optDouble(KEY_LONGITUDE),
+                    distance);
+            if (distance[0] < DISTANCE_THRESHOLD_METERS) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private void loadEntries() {
+        if (mEntries != null) {
+            return;
+        }
+
+        String val = mPreferences.getString(PREF_ENTRIES, null);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                mEntries = (JSONObject) new JSONTokener(val).nextValue();
+            } catch (JSONException e) {
+                LOGE(TAG, "Error loading geocode cache.", e);
+            } catch (ClassCastException e) {
+                LOGE(TAG, "Error loading geocode cache.", e);
+            }
+        }
+
+        if (mEntries == null) {
+            mEntries = new JSONObject();
+        }
+    }
+
+    private static String getCellKey(Location location) {
+        return String.format(Locale.US, "%d,%d",
+                Math.round(location.getLatitude() / CELL_DEGREES),
+                Math.round(location.getLongitude() / CELL_DEGREES));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.weather.engine;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGV;
+
+/**
+ * Helper methods for making HTTP requests from extensions.
+ *
+ * <p>
+ * Connections are kept alive and reused between requests to the same host; close the stream
+ * returned by {@link #getInputStream(HttpURLConnection)} rather than disconnecting. Responses are
+ * transparently gzip-decompressed, and, once {@link #installResponseCache(Context)} has been
+ * called, cached on disk and revalidated with conditional GETs (using ETag and Last-Modified
+ * headers) where the server allows it.
+ */
+public class HttpUtils {
+    private static final String TAG = LogUtils.makeLogTag(HttpUtils.class);
+
+    private static final String USER_AGENT = "DashClock/0.0";
+
+    private static final long RESPONSE_CACHE_SIZE = 1024 * 1024; // 1 MiB
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private static final AtomicLong sRequestCount = new AtomicLong();
+    private static final AtomicLong sBytesReceived = new AtomicLong();
+
+    private HttpUtils() {
+    }
+
+    /**
+     * Installs the on-disk HTTP response cache if it isn't installed yet. Safe to call more than
+     * once.
+     */
+    public static synchronized void installResponseCache(Context context) {
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+
+        try {
+            HttpResponseCache.install(new File(context.getCacheDir(), "http"),
+                    RESPONSE_CACHE_SIZE);
+        } catch (IOException e) {
+            LOGE(TAG, "Couldn't install HTTP response cache.", e);
+        }
+    }
+
+    /**
+     * Opens a GET connection to the given URL with the default timeouts.
+     */
+    public static HttpURLConnection openConnection(String url) throws IOException {
+        return openConnection(url, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Opens a GET connection to the given URL with the given timeouts.
+     */
+    public static HttpURLConnection openConnection(String url, int connectTimeoutMillis,
+            int readTimeoutMillis) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setUseCaches(true);
+        conn.setConnectTimeout(connectTimeoutMillis);
+        conn.setReadTimeout(readTimeoutMillis);
+        conn.setRequestProperty("User-Agent", USER_AGENT);
+        return conn;
+    }
+
+    /**
+     * Returns the response body for the given connection, throwing an {@link IOException} for
+     * unsuccessful responses. Closing the returned stream releases the connection for reuse.
+     */
+    public static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        sRequestCount.incrementAndGet();
+        int responseCode;
+        try {
+            responseCode = conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("HTTP error " + responseCode + " for " + conn.getURL());
+        }
+
+        return new CountingInputStream(conn.getInputStream(), conn.getURL(), startTime);
+    }
+
+    /**
+     * Reads and discards the rest of the given response body. Parsers that stop early should
+     * call this before closing, since only fully-read responses are stored in the response cache
+     * and leave their connection reusable.
+     */
+    public static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) >= 0) {
+        }
+    }
+
+    /**
+     * Closes the given stream, ignoring any errors.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Returns the total number of HTTP requests made through this class.
+     */
+    public static long getRequestCount() {
+        return sRequestCount.get();
+    }
+
+    /**
+     * Returns the total number of (decompressed) response body bytes read through this class.
+     */
+    public static long getBytesReceived() {
+        return sBytesReceived.get();
+    }
+
+    /**
+     * Counts response bytes and logs per-request statistics when closed.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final URL mUrl;
+        private final long mStartTime;
+        private long mBytesRead = 0;
+        private boolean mClosed = false;
+
+        CountingInputStream(InputStream in, URL url, long startTime) {
+            super(in);
+            mUrl = url;
+            mStartTime = startTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long n = super.skip(byteCount);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n) {
+            mBytesRead += n;
+            sBytesReceived.addAndGet(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            super.close();
+
+            HttpResponseCache cache = HttpResponseCache.getInstalled();
+            LOGV(TAG, "Fetched " + mUrl.getHost() + mUrl.getPath() + ": " + mBytesRead
+                    + " bytes in " + (SystemClock.elapsedRealtime() - mStartTime) + "ms"
+                    + ((cache != null)
+                            ? " (cache hits " + cache.getHitCount() + "/"
+                                    + cache.getRequestCount() + ")"
+                            : "")
+                    + "; " + getBytesReceived() + " bytes over " + getRequestCount()
+                    + " requests so far.");
+        }
+    }
+}
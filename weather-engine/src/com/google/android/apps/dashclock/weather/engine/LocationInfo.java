@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.dashclock.weather.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A location resolved by a {@link WeatherProvider} into the provider's own place IDs.
+ */
+public class LocationInfo {
+    // Sorted by decreasing precision
+    // (point of interest, locality3, locality2, locality1, admin3, admin2, admin1, etc.)
+    public List<String> placeIds = new ArrayList<String>();
+    public String town;
+
+    // The place ID that last yielded weather data, if known
+    public String preferredPlaceId;
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.weather.engine;
+
+import android.util.Log;
+
+/**
+ * Logging helpers for the weather engine. Unlike the app's own helpers, debug and verbose output
+ * is controlled only through {@link Log#isLoggable(String, int)}, since the engine is built into
+ * more than one app.
+ */
+class LogUtils {
+    private static final String LOG_PREFIX = "weather_";
+    private static final int LOG_PREFIX_LENGTH = LOG_PREFIX.length();
+    private static final int MAX_LOG_TAG_LENGTH = 23;
+
+    private LogUtils() {
+    }
+
+    static String makeLogTag(Class cls) {
+        String str = cls.getSimpleName();
+        if (str.length() > MAX_LOG_TAG_LENGTH - LOG_PREFIX_LENGTH) {
+            return LOG_PREFIX + str.substring(0, MAX_LOG_TAG_LENGTH - LOG_PREFIX_LENGTH - 1);
+        }
+
+        return LOG_PREFIX + str;
+    }
+
+    static void LOGD(final String tag, String message) {
+        if (Log.isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, message);
+        }
+    }
+
+    static void LOGV(final String tag, String message) {
+        if (Log.isLoggable(tag, Log.VERBOSE)) {
+            Log.v(tag, message);
+        }
+    }
+
+    static void LOGW(final String tag, String message) {
+        Log.w(tag, message);
+    }
+
+    static void LOGW(final String tag, String message, Throwable cause) {
+        Log.w(tag, message, cause);
+    }
+
+    static void LOGE(final String tag, String message) {
+        Log.e(tag, message);
+    }
+
+    static void LOGE(final String tag, String message, Throwable cause) {
+        Log.e(tag, message, cause);
+    }
+}
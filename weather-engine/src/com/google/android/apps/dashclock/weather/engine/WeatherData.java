@@ -14,16 +14,18 @@
  * limitations under the License.
  */
 
-package com.google.android.apps.dashclock.weather;
+package com.google.android.apps.dashclock.weather.engine;
 
-import net.nurik.roman.dashclock.R;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * A helper class representing weather data, for use with {@link WeatherExtension}.
+ * A helper class representing weather data, for use with {@link WeatherEngine}.
  */
 public class WeatherData {
     public static final int INVALID_TEMPERATURE = Integer.MIN_VALUE;
     public static final int INVALID_CONDITION = -1;
+    public static final int INVALID_TIME_OF_DAY = -1;
 
     public int temperature = INVALID_TEMPERATURE;
     public int conditionCode = INVALID_CONDITION;
@@ -32,13 +34,67 @@ public class WeatherData {
     public String forecastText;
     public String location;
 
+    // When the current conditions were observed, in milliseconds since the epoch
+    public long observedAt;
+
+    // Whether there are no current conditions, and the condition is today's forecast instead
+    public boolean forecastOnly;
+
+    // Sunrise and sunset, in minutes since local midnight
+    public int sunriseMinutes = INVALID_TIME_OF_DAY;
+    public int sunsetMinutes = INVALID_TIME_OF_DAY;
+
+    // All days in the feed, in date order; the first is usually today
+    public List<DayForecast> forecasts = new ArrayList<DayForecast>();
+
     public WeatherData() {
     }
 
+    /**
+     * A single day's forecast.
+     */
+    public static class DayForecast {
+        // Local date as yyyymmdd, e.g. 20131018
+        public int date;
+        public int low = INVALID_TEMPERATURE;
+        public int high = INVALID_TEMPERATURE;
+        public int conditionCode = INVALID_CONDITION;
+        public String text;
+    }
+
     public boolean hasValidTemperature() {
         return temperature > Integer.MIN_VALUE;
     }
 
+    /**
+     * Switches the current condition code to its day or night variant, if it has one (e.g. sunny
+     * becomes clear at night). The condition text comes localized from the feed, so it's left
+     * as is.
+     */
+    public void applyTimeOfDay(boolean night) {
+        conditionCode = getDayNightVariant(conditionCode, night);
+    }
+
+    private static int getDayNightVariant(int conditionCode, boolean night) {
+        // http://developer.yahoo.com/weather/
+        switch (conditionCode) {
+            case 27: // mostly cloudy (night)
+            case 28: // mostly cloudy (day)
+                return night ? 27 : 28;
+            case 29: // partly cloudy (night)
+            case 30: // partly cloudy (day)
+                return night ? 29 : 30;
+            case 31: // clear (night)
+            case 32: // sunny
+                return night ? 31 : 32;
+            case 33: // fair (night)
+            case 34: // fair (day)
+                return night ? 33 : 34;
+        }
+
+        return conditionCode;
+    }
+
     public static int getConditionIconId(int conditionCode) {
         // http://developer.yahoo.com/weather/
         switch (conditionCode) {
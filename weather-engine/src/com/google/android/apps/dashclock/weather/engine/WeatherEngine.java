@@ -0,0 +1,285 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.dashclock.weather.engine;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGW;
+
+/**
+ * Gets weather for a location from a {@link WeatherProvider}. Resolved places are cached by
+ * location, the place that last yielded weather is tried first, other candidate places are
+ * tried in parallel, and recent forecasts are reused where possible (see {@link ForecastStore}).
+ */
+public class WeatherEngine {
+    private static final String TAG = LogUtils.makeLogTag(WeatherEngine.class);
+
+    private static final int MAX_PARALLEL_PLACE_PROBES = 3;
+
+    private static final ThreadPoolExecutor sPlaceProbeExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_PLACE_PROBES, MAX_PARALLEL_PLACE_PROBES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sPlaceProbeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final WeatherProvider mProvider;
+    private final GeocodeCache mGeocodeCache;
+    private final ForecastStore mForecastStore;
+
+    public WeatherEngine(Context context, WeatherProvider provider) {
+        mProvider = provider;
+        mGeocodeCache = new GeocodeCache(context);
+        mForecastStore = new ForecastStore(context);
+        HttpUtils.installResponseCache(context);
+    }
+
+    /**
+     * Returns weather for the given location, or null if the provider has none. Blocks on
+     * network requests, so must not be called on the main thread.
+     *
+     * @param units       Either <code>"c"</code> or <code>"f"</code>.
+     * @param allowStored Whether recently fetched current conditions for a nearby location may
+     *                    be used instead of fetching. Whether or not they may, today's stored
+     *                    forecast is used if fetching fails.
+     */
+    public WeatherData getWeather(Location location, String units, boolean allowStored)
+            throws InvalidLocationException, IOException {
+        if (allowStored) {
+            WeatherData data = mForecastStore.get(location, units, System.currentTimeMillis(),
+                    false);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        try {
+            return fetchLocationWeather(location, units);
+        } catch (IOException e) {
+            WeatherData data = mForecastStore.get(location, units, System.currentTimeMillis(),
+                    true);
+            if (data == null) {
+                throw e;
+            }
+
+            LOGW(TAG, "Couldn't fetch weather; using stored forecast.", e);
+            return data;
+        }
+    }
+
+    /**
+     * Fetches weather for the given location from the provider, and stores it.
+     */
+    private WeatherData fetchLocationWeather(Location location, String units)
+            throws InvalidLocationException, IOException {
+        LOGD(TAG, "Using location: " + location.getLatitude() + "," + location.getLongitude());
+
+        LocationInfo locationInfo = mGeocodeCache.get(location);
+        if (locationInfo == null) {
+            locationInfo = mProvider.geocode(location);
+            mGeocodeCache.put(location, locationInfo);
+        }
+
+        WeatherData data = null;
+        IOException preferredPlaceError = null;
+
+        // Go straight to the place that worked last time, if any.
+        String preferredPlaceId = locationInfo.preferredPlaceId;
+        if (!TextUtils.isEmpty(preferredPlaceId)) {
+            LOGD(TAG, "Trying preferred place: " + preferredPlaceId);
+            try {
+                data = fetchWeather(openWeatherConnection(preferredPlaceId, units),
+                        locationInfo);
+            } catch (IOException e) {
+                LOGW(TAG, "Error fetching weather for preferred place " + preferredPlaceId, e);
+                preferredPlaceError = e;
+            }
+        }
+
+        if (!isValidWeatherData(data)) {
+            // The preferred place has already been tried, so it isn't probed again.
+            Pair<String, WeatherData> result = probePlaces(locationInfo, units,
+                    preferredPlaceId);
+            if (result == null) {
+                if (preferredPlaceError != null) {
+                    throw preferredPlaceError;
+                }
+
+                // No weather could be found :(
+                return null;
+            }
+
+            mGeocodeCache.setPreferredPlaceId(location, result.first);
+            data = result.second;
+        }
+
+        data.observedAt = System.currentTimeMillis();
+        mForecastStore.put(location, units, data);
+        return data;
+    }
+
+    private static boolean isValidWeatherData(WeatherData data) {
+        return data != null
+                && data.conditionCode != WeatherData.INVALID_CONDITION
+                && data.temperature != WeatherData.INVALID_TEMPERATURE;
+    }
+
+    /**
+     * Fetches weather data for the location's place IDs (in descending precision order), up to
+     * {@link #MAX_PARALLEL_PLACE_PROBES} at a time. Returns the most precise place ID with valid
+     * weather data along with that data, or null if there is none. Requests that are no longer
+     * needed are cancelled, disconnecting them if they're already underway.
+     *
+     * @param excludedPlaceId A place ID not to probe, e.g. because it was just tried. May be
+     *                        null.
+     */
+    private Pair<String, WeatherData> probePlaces(LocationInfo locationInfo, String units,
+            String excludedPlaceId) throws IOException {
+        List<String> placeIds = new ArrayList<String>(locationInfo.placeIds);
+        placeIds.remove(excludedPlaceId);
+        long startTime = SystemClock.elapsedRealtime();
+        IOException firstError = null;
+        for (int batchStart = 0; batchStart < placeIds.size();
+                batchStart += MAX_PARALLEL_PLACE_PROBES) {
+            List<String> batch = placeIds.subList(batchStart,
+                    Math.min(batchStart + MAX_PARALLEL_PLACE_PROBES, placeIds.size()));
+            List<PlaceProbe> probes = new ArrayList<PlaceProbe>();
+            List<Future<WeatherData>> futures = new ArrayList<Future<WeatherData>>();
+            for (String placeId : batch) {
+                PlaceProbe probe = new PlaceProbe(placeId, locationInfo, units);
+                probes.add(probe);
+                futures.add(sPlaceProbeExecutor.submit(probe));
+            }
+
+            try {
+                // Wait for results in precision order, so a less precise result only wins once
+                // every more precise place has come up empty.
+                for (int i = 0; i < futures.size(); i++) {
+                    WeatherData data = null;
+                    try {
+                        data = futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            if (firstError == null) {
+                                firstError = (IOException) e.getCause();
+                            }
+                        } else {
+                            LOGW(TAG, "Error fetching weather for place " + batch.get(i), e);
+                        }
+                    }
+
+                    if (isValidWeatherData(data)) {
+                        LOGD(TAG, "Found weather for place " + batch.get(i) + " (candidate "
+                                + (batchStart + i + 1) + "/" + placeIds.size() + ") in "
+                                + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                        return new Pair<String, WeatherData>(batch.get(i), data);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching weather.", e);
+            } finally {
+                for (int i = 0; i < futures.size(); i++) {
+                    if (!futures.get(i).isDone()) {
+                        // Interrupting doesn't abort blocking reads; disconnecting does.
+                        futures.get(i).cancel(true);
+                        probes.get(i).cancel();
+                    }
+                }
+            }
+        }
+
+        if (firstError != null) {
+            throw firstError;
+        }
+
+        return null;
+    }
+
+    private HttpURLConnection openWeatherConnection(String placeId, String units)
+            throws IOException {
+        return HttpUtils.openConnection(mProvider.getWeatherUrl(placeId, units));
+    }
+
+    private WeatherData fetchWeather(HttpURLConnection connection, LocationInfo locationInfo)
+            throws IOException {
+        InputStream in = null;
+        try {
+            in = HttpUtils.getInputStream(connection);
+            WeatherData data = mProvider.parseWeather(in, locationInfo);
+            HttpUtils.drain(in);
+            return data;
+        } finally {
+            // Closing rather than disconnecting keeps the connection alive for reuse.
+            HttpUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Fetches weather for a single candidate place on {@link #sPlaceProbeExecutor}, and can be
+     * cancelled while its request is underway.
+     */
+    private class PlaceProbe implements Callable<WeatherData> {
+        private final String mPlaceId;
+        private final LocationInfo mLocationInfo;
+        private final String mUnits;
+        private HttpURLConnection mConnection;
+        private boolean mCancelled = false;
+
+        PlaceProbe(String placeId, LocationInfo locationInfo, String units) {
+            mPlaceId = placeId;
+            mLocationInfo = locationInfo;
+            mUnits = units;
+        }
+
+        @Override
+        public WeatherData call() throws IOException {
+            HttpURLConnection connection = openWeatherConnection(mPlaceId, mUnits);
+            synchronized (this) {
+                if (mCancelled) {
+                    return null;
+                }
+                mConnection = connection;
+            }
+            return fetchWeather(connection, mLocationInfo);
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mConnection != null) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.weather.engine;
+
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGV;
+import static com.google.android.apps.dashclock.weather.engine.LogUtils.LOGW;
+
+/**
+ * Parsers for the weather feed and geocoding responses used by {@link WeatherEngine}.
+ *
+ * <p>
+ * Each parser stops reading as soon as it has seen everything it needs. Responses are read as
+ * buffered bytes so that the parser honors the encoding declared in the document, and parser
+ * instances are reused on each thread.
+ */
+class WeatherFeedParser {
+    private static final String TAG = LogUtils.makeLogTag(WeatherFeedParser.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static XmlPullParserFactory sXmlPullParserFactory;
+
+    static {
+        try {
+            sXmlPullParserFactory = XmlPullParserFactory.newInstance();
+            sXmlPullParserFactory.setNamespaceAware(true);
+        } catch (XmlPullParserException e) {
+            LOGE(TAG, "Could not instantiate XmlPullParserFactory", e);
+        }
+    }
+
+    private static final ThreadLocal<XmlPullParser> sParser = new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+            try {
+                return sXmlPullParserFactory.newPullParser();
+            } catch (XmlPullParserException e) {
+                LOGE(TAG, "Could not create XmlPullParser", e);
+                return null;
+            }
+        }
+    };
+
+    // SimpleDateFormat isn't thread-safe.
+    private static final ThreadLocal<SimpleDateFormat[]> sDateFormats
+            = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            return new SimpleDateFormat[]{
+                    new SimpleDateFormat("d MMM yyyy", Locale.US), // forecast date
+                    new SimpleDateFormat("h:m a", Locale.US), // sunrise/sunset
+            };
+        }
+    };
+
+    private WeatherFeedParser() {
+    }
+
+    /**
+     * Parses a Yahoo! Weather RSS feed. Reading stops once the location, astronomy, current
+     * conditions and all forecast days have been seen.
+     *
+     * @param town The town name from the geocoding response, if any, used to build the location
+     *             string.
+     */
+    static WeatherData parseWeather(InputStream in, String town)
+            throws IOException, XmlPullParserException {
+        long startTime = SystemClock.elapsedRealtime();
+        XmlPullParser xpp = obtainParser(in);
+
+        WeatherData data = new WeatherData();
+        boolean hasCondition = false;
+        boolean hasTodayForecast = false;
+        boolean hasLocation = false;
+        boolean hasAstronomy = false;
+        int eventType;
+        while ((eventType = xpp.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            String tagName = xpp.getName();
+            if (hasTodayForecast && !"forecast".equals(tagName)
+                    && hasCondition && hasLocation && hasAstronomy) {
+                // Past the last forecast day.
+                break;
+            }
+
+            if (!hasCondition && "condition".equals(tagName)) {
+                hasCondition = true;
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    String attrName = xpp.getAttributeName(i);
+                    if ("temp".equals(attrName)) {
+                        data.temperature = Integer.parseInt(xpp.getAttributeValue(i));
+                    } else if ("code".equals(attrName)) {
+                        data.conditionCode = Integer.parseInt(xpp.getAttributeValue(i));
+                    } else if ("text".equals(attrName)) {
+                        data.conditionText = xpp.getAttributeValue(i);
+                    }
+                }
+            } else if ("forecast".equals(tagName)) {
+                WeatherData.DayForecast forecast = new WeatherData.DayForecast();
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    String attrName = xpp.getAttributeName(i);
+                    if ("code".equals(attrName)) {
+                        forecast.conditionCode = Integer.parseInt(xpp.getAttributeValue(i));
+                    } else if ("text".equals(attrName)) {
+                        forecast.text = xpp.getAttributeValue(i);
+                    } else if ("low".equals(attrName)) {
+                        forecast.low = Integer.parseInt(xpp.getAttributeValue(i));
+                    } else if ("high".equals(attrName)) {
+                        forecast.high = Integer.parseInt(xpp.getAttributeValue(i));
+                    } else if ("date".equals(attrName)) {
+                        forecast.date = parseDate(xpp.getAttributeValue(i));
+                    }
+                }
+                data.forecasts.add(forecast);
+
+                if (!hasTodayForecast) {
+                    // TODO: verify this is the forecast for today (this currently assumes the
+                    // first forecast is today's forecast)
+                    hasTodayForecast = true;
+                    data.todayForecastConditionCode = forecast.conditionCode;
+                    data.forecastText = forecast.text;
+                }
+            } else if (!hasAstronomy && "astronomy".equals(tagName)) {
+                hasAstronomy = true;
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    String attrName = xpp.getAttributeName(i);
+                    if ("sunrise".equals(attrName)) {
+                        data.sunriseMinutes = parseTimeOfDay(xpp.getAttributeValue(i));
+                    } else if ("sunset".equals(attrName)) {
+                        data.sunsetMinutes = parseTimeOfDay(xpp.getAttributeValue(i));
+                    }
+                }
+            } else if (!hasLocation && "location".equals(tagName)) {
+                hasLocation = true;
+                String cityOrVillage = "--";
+                String region = null;
+                String country = "--";
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    String attrName = xpp.getAttributeName(i);
+                    if ("city".equals(attrName)) {
+                        cityOrVillage = xpp.getAttributeValue(i);
+                    } else if ("region".equals(attrName)) {
+                        region = xpp.getAttributeValue(i);
+                    } else if ("country".equals(attrName)) {
+                        country = xpp.getAttributeValue(i);
+                    }
+                }
+
+                if (TextUtils.isEmpty(region)) {
+                    // If no region is available, show the country. Otherwise, don't
+                    // show country information.
+                    region = country;
+                }
+
+                if (!TextUtils.isEmpty(town) && !town.equals(cityOrVillage)) {
+                    // If a town is available and it's not equivalent to the city name,
+                    // show it.
+                    cityOrVillage = cityOrVillage + ", " + town;
+                }
+
+                data.location = cityOrVillage + ", " + region;
+            }
+        }
+
+        if (TextUtils.isEmpty(data.location)) {
+            data.location = town;
+        }
+
+        finish(xpp, "weather feed", startTime);
+        return data;
+    }
+
+    /**
+     * Parses a Nominatim reverse geocoding response, returning the city (or failing that, the
+     * county) and country code, either of which may be empty. Reading stops once the city and
+     * country code have been seen.
+     */
+    static Pair<String, String> parsePlace(InputStream in)
+            throws IOException, XmlPullParserException {
+        long startTime = SystemClock.elapsedRealtime();
+        XmlPullParser xpp = obtainParser(in);
+
+        String city = "";
+        String county = "";
+        String countryIso = "";
+        boolean hasCity = false;
+        boolean hasCountry = false;
+        int eventType;
+        while ((eventType = xpp.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            String tagName = xpp.getName();
+            if (!hasCity && "city".equals(tagName)) {
+                hasCity = true;
+                city = xpp.nextText();
+            } else if ("county".equals(tagName)) {
+                county = xpp.nextText();
+            } else if (!hasCountry && "country_code".equals(tagName)) {
+                hasCountry = true;
+                countryIso = xpp.nextText();
+            }
+
+            if (hasCity && hasCountry) {
+                break;
+            }
+        }
+
+        if (TextUtils.isEmpty(city)) {
+            city = county;
+        }
+
+        finish(xpp, "place", startTime);
+        return new Pair<String, String>(city, countryIso);
+    }
+
+    /**
+     * Parses a GeoPlanet place search response into the given {@link LocationInfo},
+     * adding WOEIDs in decreasing order of precision. Reading stops at the end of the first
+     * place in the given country, or of the first place at all if the country is null.
+     */
+    static void parseWoeids(InputStream in, String countryIso, LocationInfo li)
+            throws IOException, XmlPullParserException {
+        long startTime = SystemClock.elapsedRealtime();
+        XmlPullParser xpp = obtainParser(in);
+
+        // first=tagname (admin1, locality3) second=woeid
+        String primaryWoeid = null;
+        String countryCode = "";
+        List<Pair<String, String>> alternateWoeids = new ArrayList<Pair<String, String>>();
+
+        int eventType;
+        while ((eventType = xpp.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.END_TAG) {
+                if ("place".equals(xpp.getName())) {
+                    if (countryIso == null || countryCode.equalsIgnoreCase(countryIso)) {
+                        break;
+                    }
+
+                    // A namesake in another country; try the next place.
+                    primaryWoeid = null;
+                    countryCode = "";
+                    li.town = null;
+                    alternateWoeids.clear();
+                }
+                continue;
+            } else if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            String tagName = xpp.getName();
+            if ("woeid".equals(tagName)) {
+                primaryWoeid = xpp.nextText();
+            } else if ("country".equals(tagName)) {
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    if ("code".equals(xpp.getAttributeName(i))) {
+                        countryCode = xpp.getAttributeValue(i);
+                    }
+                }
+            } else if (tagName.startsWith("locality") || tagName.startsWith("admin")) {
+                boolean isTown = false;
+                for (int i = xpp.getAttributeCount() - 1; i >= 0; i--) {
+                    String attrName = xpp.getAttributeName(i);
+                    if ("type".equals(attrName)
+                            && "Town".equals(xpp.getAttributeValue(i))) {
+                        isTown = true;
+                    } else if ("woeid".equals(attrName)) {
+                        String woeid = xpp.getAttributeValue(i);
+                        if (!TextUtils.isEmpty(woeid)) {
+                            alternateWoeids.add(new Pair<String, String>(tagName, woeid));
+                        }
+                    }
+                }
+
+                if (isTown) {
+                    li.town = xpp.nextText();
+                }
+            }
+        }
+
+        // Add the primary woeid if it was found.
+        if (!TextUtils.isEmpty(primaryWoeid)) {
+            li.placeIds.add(primaryWoeid);
+        }
+
+        // Sort by descending tag name to order by decreasing precision
+        // (locality3, locality2, locality1, admin3, admin2, admin1, etc.)
+        Collections.sort(alternateWoeids, new Comparator<Pair<String, String>>() {
+            @Override
+            public int compare(Pair<String, String> pair1, Pair<String, String> pair2) {
+                return pair1.first.compareTo(pair2.first);
+            }
+        });
+
+        for (Pair<String, String> pair : alternateWoeids) {
+            li.placeIds.add(pair.second);
+        }
+
+        finish(xpp, "WOEID search", startTime);
+    }
+
+    /**
+     * Parses a forecast date such as "18 Oct 2013" into yyyymmdd form, or returns 0.
+     */
+    private static int parseDate(String value) {
+        try {
+            Date date = sDateFormats.get()[0].parse(value);
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(date);
+            return cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100
+                    + cal.get(Calendar.DAY_OF_MONTH);
+        } catch (ParseException e) {
+            LOGW(TAG, "Couldn't parse forecast date: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Parses a time such as "7:02 am" into minutes since midnight, or returns
+     * {@link WeatherData#INVALID_TIME_OF_DAY}.
+     */
+    private static int parseTimeOfDay(String value) {
+        try {
+            Date time = sDateFormats.get()[1].parse(value);
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(time);
+            return cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+        } catch (ParseException e) {
+            LOGW(TAG, "Couldn't parse time of day: " + value);
+            return WeatherData.INVALID_TIME_OF_DAY;
+        }
+    }
+
+    private static XmlPullParser obtainParser(InputStream in) throws XmlPullParserException {
+        XmlPullParser xpp = sParser.get();
+        if (xpp == null) {
+            throw new XmlPullParserException("No XmlPullParser available.");
+        }
+
+        // A null encoding lets the parser use the one declared in the document.
+        xpp.setInput(new BufferedInputStream(in, BUFFER_SIZE), null);
+        return xpp;
+    }
+
+    private static void finish(XmlPullParser xpp, String what, long startTime)
+            throws XmlPullParserException {
+        LOGV(TAG, "Parsed " + what + " in " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms, stopping at line " + xpp.getLineNumber() + ".");
+
+        // Don't hold on to the response stream between parses.
+        xpp.setInput(null);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.dashclock.weather.engine;
+
+import android.location.Location;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of weather data for {@link WeatherEngine}. A provider resolves locations into its own
+ * place IDs, says where to fetch weather for a place, and parses the response. The engine takes
+ * care of HTTP, caching and retries, and calls these methods on background threads, possibly
+ * concurrently.
+ */
+public interface WeatherProvider {
+    /**
+     * Resolves the given location into place IDs, in decreasing order of precision. Results are
+     * cached by the engine, so this is only called for locations it hasn't seen recently. Use
+     * {@link HttpUtils} for any requests.
+     */
+    LocationInfo geocode(Location location) throws IOException, InvalidLocationException;
+
+    /**
+     * Returns the URL to fetch weather for the given place from.
+     *
+     * @param units Either <code>"c"</code> or <code>"f"</code>.
+     */
+    String getWeatherUrl(String placeId, String units);
+
+    /**
+     * Parses a weather response fetched from {@link #getWeatherUrl(String, String)}. Data that
+     * isn't available should be left at its invalid default value; the engine then tries the
+     * next place ID.
+     */
+    WeatherData parseWeather(InputStream in, LocationInfo locationInfo) throws IOException;
+}
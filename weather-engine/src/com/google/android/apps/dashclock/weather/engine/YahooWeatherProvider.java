@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.dashclock.weather.engine;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.location.Location;
+import android.util.Pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+
+/**
+ * A {@link WeatherProvider} backed by Yahoo! Weather, with reverse geocoding by OpenStreetMap's
+ * Nominatim (hosted by MapQuest) and place lookup by Yahoo! GeoPlanet.
+ */
+public class YahooWeatherProvider implements WeatherProvider {
+    private final int mMaxPlaceResults;
+
+    /**
+     * Creates a provider that uses the first GeoPlanet place found for the reverse geocoded
+     * town, whatever its country.
+     */
+    public YahooWeatherProvider() {
+        this(1);
+    }
+
+    /**
+     * Creates a provider that considers up to the given number of GeoPlanet places for the
+     * reverse geocoded town, and uses the first one in the right country. The first place found
+     * may be a namesake elsewhere.
+     */
+    public YahooWeatherProvider(int maxPlaceResults) {
+        mMaxPlaceResults = maxPlaceResults;
+    }
+
+    @Override
+    public LocationInfo geocode(Location location) throws IOException, InvalidLocationException {
+        Pair<String, String> place;
+        HttpURLConnection connection = HttpUtils.openConnection(buildPlaceSearchUrl(location));
+        InputStream in = null;
+        try {
+            in = HttpUtils.getInputStream(connection);
+            place = WeatherFeedParser.parsePlace(in);
+            HttpUtils.drain(in);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Error parsing location XML response.", e);
+        } finally {
+            HttpUtils.closeQuietly(in);
+        }
+
+        String city = place.first;
+        String countryIso = place.second;
+        if (city.isEmpty() || countryIso.isEmpty()) {
+            throw new InvalidLocationException("Couldn't reverse geocode location.");
+        }
+
+        LocationInfo li = new LocationInfo();
+        connection = HttpUtils.openConnection(buildWoeidSearchUrl(city, countryIso));
+        in = null;
+        try {
+            in = HttpUtils.getInputStream(connection);
+            WeatherFeedParser.parseWoeids(in, (mMaxPlaceResults > 1) ? countryIso : null, li);
+            HttpUtils.drain(in);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Error parsing location XML response.", e);
+        } finally {
+            HttpUtils.closeQuietly(in);
+        }
+
+        if (li.placeIds.isEmpty()) {
+            throw new InvalidLocationException();
+        }
+
+        return li;
+    }
+
+    @Override
+    public String getWeatherUrl(String placeId, String units) {
+        // http://developer.yahoo.com/weather/
+        return "http://weather.yahooapis.com/forecastrss?w=" + placeId + "&u=" + units;
+    }
+
+    @Override
+    public WeatherData parseWeather(InputStream in, LocationInfo locationInfo)
+            throws IOException {
+        try {
+            return WeatherFeedParser.parseWeather(in, locationInfo.town);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Error parsing weather feed XML.", e);
+        }
+    }
+
+    private static String buildPlaceSearchUrl(Location l) {
+        // OpenStreetMap / Mapquest nominatim API
+        return "http://open.mapquestapi.com/nominatim/v1/reverse?"
+                + "lat=" + l.getLatitude() + "&lon=" + l.getLongitude();
+    }
+
+    private String buildWoeidSearchUrl(String city, String countryIso) throws IOException {
+        // GeoPlanet API
+        String query;
+        try {
+            query = URLEncoder.encode("'" + city + "','" + countryIso + "'", "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException("Couldn't encode place query.", e);
+        }
+
+        return "http://where.yahooapis.com/v1/places.q(" + query + ")"
+                + ((mMaxPlaceResults > 1) ? ";count=" + mMaxPlaceResults : "")
+                + "?appid=kGO140TV34HVTae_DDS93fM_w3AJmtmI23gxUFnHKWyrOGcRzoFjYpw8Ato6BxhvbTg-";
+    }
+}